@@ -0,0 +1,211 @@
+package pk.contender.earmouse;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Append-only log of the answers given to the exercises of a Module, see {@link pk.contender.earmouse.ModuleStats}.
+ * <p>
+ * The file starts with a small header (magic, version and record size) followed by fixed-width records of
+ * exerciseIndex (int), result (byte) and timestamp (long), big-endian. Recording an answer appends one record,
+ * the file is only synced to storage every {@link #SYNC_BATCH} records as syncing is much more expensive than
+ * the write itself. If the App dies halfway through an append, the incomplete record at the end is ignored
+ * when reading and cut off by the next append.
+ * <p>
+ * {@link #rewrite(AnswerStore)} replaces the whole log at once through a temporary file, used for migrating
+ * the old JSON statistics and for compacting a log with an incomplete record at the end. A log with an unknown
+ * header, e.g. one written by a newer version, is never read, appended to or rewritten, see
+ * {@link UnknownFormatException}.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class AnswerLog {
+
+    /** "EMAL", Earmouse answer log */
+    private static final int MAGIC = 0x454d414c;
+    private static final short VERSION = 1;
+    /** Magic (int), version (short) and record size (short) */
+    private static final int HEADER_SIZE = 8;
+    /** exerciseIndex (int), result (byte) and timestamp (long) */
+    private static final int RECORD_SIZE = 13;
+    /** The amount of records that may be appended before the file is synced to storage */
+    private static final int SYNC_BATCH = 16;
+
+    /**
+     * Thrown when the log file has a header this version does not know. Its contents can not be read without
+     * risking the loss of answers, so the file has to be left alone, see {@link #moveAside()}.
+     */
+    public static class UnknownFormatException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public UnknownFormatException(String detailMessage) {
+            super(detailMessage);
+        }
+    }
+
+    private final File logFile;
+    /** The amount of records appended since the file was last synced */
+    private int unsynced = 0;
+
+    /**
+     * @param logFile The file that holds the log, need not exist yet
+     */
+    public AnswerLog(File logFile) {
+        this.logFile = logFile;
+    }
+
+    /**
+     * @return True if the log file exists.
+     */
+    public boolean exists() {
+        return logFile.exists();
+    }
+
+    /**
+     * Stream all complete records of the log to the given visitor, in the order they were appended.
+     * @param visitor The visitor
+     * @return True if the log was intact, false if it has an incomplete record or header at the end
+     * and should be compacted with {@link #rewrite(AnswerStore)}.
+     * @throws UnknownFormatException if the log has an unknown header, nothing was read
+     * @throws IOException
+     */
+    public boolean read(AnswerStore.Visitor visitor) throws IOException {
+        long length = logFile.length();
+        if(length < HEADER_SIZE)
+            return false;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+        try {
+            checkHeader(in.readInt(), in.readShort(), in.readShort());
+            long recordCount = (length - HEADER_SIZE) / RECORD_SIZE;
+            for(long i = 0; i < recordCount; i++) {
+                int exerciseIndex = in.readInt();
+                boolean result = in.readByte() != 0;
+                long timestamp = in.readLong();
+                visitor.onAnswer(exerciseIndex, result, timestamp);
+            }
+            return (length - HEADER_SIZE) % RECORD_SIZE == 0;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Append the given answers to the log, creating it if necessary.
+     * @param answers The answers
+     * @param from The index in answers of the first answer to append
+     * @throws UnknownFormatException if the log has an unknown header, nothing was appended
+     * @throws IOException
+     */
+    public void append(AnswerStore answers, int from) throws IOException {
+        if(from >= answers.size())
+            return;
+
+        RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+        try {
+            long length = file.length();
+            if(length < HEADER_SIZE) {
+                file.setLength(0);
+                file.write(header());
+                length = HEADER_SIZE;
+            } else {
+                checkHeader(file.readInt(), file.readShort(), file.readShort());
+                // Cut off an incomplete record left by an interrupted append
+                length -= (length - HEADER_SIZE) % RECORD_SIZE;
+                file.setLength(length);
+            }
+            file.seek(length);
+            file.write(records(answers, from));
+
+            unsynced += answers.size() - from;
+            if(unsynced >= SYNC_BATCH) {
+                file.getFD().sync();
+                unsynced = 0;
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Replace the log with the given answers. The new log is written to a temporary file which then replaces
+     * the old one, so the old log stays intact if writing fails.
+     * @param answers The answers
+     * @throws IOException
+     */
+    public void rewrite(AnswerStore answers) throws IOException {
+        File tempFile = new File(logFile.getPath() + ".tmp");
+        RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+        try {
+            file.setLength(0);
+            file.write(header());
+            file.write(records(answers, 0));
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        if(!tempFile.renameTo(logFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw new IOException("Could not replace " + logFile.getName());
+        }
+        unsynced = 0;
+    }
+
+    /**
+     * @return The length of the log file in bytes, 0 if it does not exist.
+     */
+    public long length() {
+        return logFile.length();
+    }
+
+    /**
+     * Delete the log file.
+     * @return True if the file was deleted.
+     */
+    public boolean delete() {
+        unsynced = 0;
+        return logFile.exists() && logFile.delete();
+    }
+
+    /**
+     * Move the log file out of the way, keeping its contents, so that a new log can be started.
+     * @return True if the file was moved.
+     */
+    public boolean moveAside() {
+        unsynced = 0;
+        File asideFile = new File(logFile.getPath() + ".unknown");
+        if(asideFile.exists() && !asideFile.delete())
+            return false;
+        return logFile.renameTo(asideFile);
+    }
+
+    private void checkHeader(int magic, short version, short recordSize) throws UnknownFormatException {
+        if(magic != MAGIC || version != VERSION || recordSize != RECORD_SIZE)
+            throw new UnknownFormatException("Unknown header in " + logFile.getName() + ", version " + version);
+    }
+
+    private static byte [] header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) RECORD_SIZE);
+        return header.array();
+    }
+
+    private static byte [] records(AnswerStore answers, int from) {
+        final ByteBuffer records = ByteBuffer.allocate((answers.size() - from) * RECORD_SIZE);
+        answers.visit(from, answers.size(), new AnswerStore.Visitor() {
+            @Override
+            public void onAnswer(int exerciseIndex, boolean result, long timestamp) {
+                records.putInt(exerciseIndex);
+                records.put((byte) (result ? 1 : 0));
+                records.putLong(timestamp);
+            }
+        });
+        return records.array();
+    }
+}
@@ -0,0 +1,123 @@
+package pk.contender.earmouse;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A growable list of the answers given to the exercises of a Module, stored column by column in primitive
+ * arrays: the exercise indices, the results as bits and the timestamps in milliseconds.
+ * <p>
+ * An answer takes 12 bytes and a bit, instead of an object per answer holding a Joda DateTime that took well
+ * over a hundred, which adds up for long histories of every installed Module.
+ * <p>
+ * Not thread-safe.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class AnswerStore {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Receives answers, see {@link #visit(int, int, Visitor)} and {@link pk.contender.earmouse.AnswerLog#read(Visitor)}.
+     */
+    public interface Visitor {
+        public void onAnswer(int exerciseIndex, boolean result, long timestamp);
+    }
+
+    private int [] exerciseIndices;
+    private final BitSet results = new BitSet();
+    private long [] timestamps;
+    private int size = 0;
+
+    public AnswerStore() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param capacity The amount of answers to allocate room for
+     */
+    public AnswerStore(int capacity) {
+        capacity = Math.max(1, capacity);
+        exerciseIndices = new int[capacity];
+        timestamps = new long[capacity];
+    }
+
+    /**
+     * Append an answer.
+     * @param exerciseIndex The index of the exercise the answer refers to
+     * @param result The correctness of the answer
+     * @param timestamp The time at which the answer was given, in milliseconds since the epoch
+     */
+    public void add(int exerciseIndex, boolean result, long timestamp) {
+        if(size == exerciseIndices.length) {
+            int capacity = size * 2;
+            exerciseIndices = Arrays.copyOf(exerciseIndices, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+        }
+        exerciseIndices[size] = exerciseIndex;
+        results.set(size, result);
+        timestamps[size] = timestamp;
+        size++;
+    }
+
+    /**
+     * @return The amount of answers.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getExerciseIndex(int position) {
+        checkPosition(position);
+        return exerciseIndices[position];
+    }
+
+    public boolean getResult(int position) {
+        checkPosition(position);
+        return results.get(position);
+    }
+
+    public long getTimestamp(int position) {
+        checkPosition(position);
+        return timestamps[position];
+    }
+
+    /**
+     * Pass the answers in the range [from, to> to the given visitor, in order.
+     * @param from The position of the first answer
+     * @param to The position after the last answer
+     * @param visitor The visitor
+     */
+    public void visit(int from, int to, Visitor visitor) {
+        checkRange(from, to);
+        for(int i = from; i < to; i++)
+            visitor.onAnswer(exerciseIndices[i], results.get(i), timestamps[i]);
+    }
+
+    /**
+     * @param from The position of the first answer
+     * @param to The position after the last answer
+     * @return A new AnswerStore with a copy of the answers in the range [from, to>.
+     */
+    public AnswerStore copyRange(int from, int to) {
+        checkRange(from, to);
+        AnswerStore copy = new AnswerStore(to - from);
+        System.arraycopy(exerciseIndices, from, copy.exerciseIndices, 0, to - from);
+        System.arraycopy(timestamps, from, copy.timestamps, 0, to - from);
+        for(int i = results.nextSetBit(from); i >= 0 && i < to; i = results.nextSetBit(i + 1))
+            copy.results.set(i - from);
+        copy.size = to - from;
+        return copy;
+    }
+
+    private void checkPosition(int position) {
+        if(position < 0 || position >= size)
+            throw new IndexOutOfBoundsException("Position " + position + ", size " + size);
+    }
+
+    private void checkRange(int from, int to) {
+        if(from < 0 || to > size || from > to)
+            throw new IndexOutOfBoundsException("Range [" + from + ", " + to + "), size " + size);
+    }
+}
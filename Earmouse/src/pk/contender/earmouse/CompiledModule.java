@@ -0,0 +1,181 @@
+package pk.contender.earmouse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The exercises and answers of a Module in a binary format that is read by mapping the file into memory,
+ * compiled from the module's JSON file so that opening a Module does not need to tokenize the JSON.
+ * <p>
+ * The file consists of a fixed-size header (magic, version, the amount of exercises, exercise units and notes
+ * and the offset of the metadata), followed by three big-endian int arrays and then the metadata:
+ * <ul>
+ * <li>exerciseStart: for every exercise the index of its first exercise unit, plus the total amount of units</li>
+ * <li>unitStart: for every exercise unit the index of its first note, plus the total amount of notes</li>
+ * <li>notes: the notes of all exercise units, in order, see {@link pk.contender.earmouse.Module#getExercise(int, Exercise)}</li>
+ * <li>metadata: the {@link pk.contender.earmouse.ModuleIndex.Entry} of the JSON file it was compiled from,
+ * followed by the answers</li>
+ * </ul>
+ * The metadata records the length and modification time of the JSON file, a compiled file that does not
+ * match its JSON file is out of date and ignored.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class CompiledModule {
+
+    /** "EMCM", Earmouse compiled module */
+    private static final int MAGIC = 0x454d434d;
+    private static final short VERSION = 1;
+    /** Magic (int), version (short), reserved (short), exercise, unit and note count (int) and metadata offset (int) */
+    private static final int HEADER_SIZE = 24;
+
+    /** The metadata of the JSON file this was compiled from */
+    public final ModuleIndex.Entry metadata;
+    /** The answers of the Module */
+    public final List<String> answers;
+    /** The index of the first exercise unit of every exercise, followed by the amount of units */
+    public final IntBuffer exerciseStart;
+    /** The index of the first note of every exercise unit, followed by the amount of notes */
+    public final IntBuffer unitStart;
+    /** The notes of all exercise units */
+    public final IntBuffer notes;
+
+    private CompiledModule(ModuleIndex.Entry metadata, List<String> answers, IntBuffer exerciseStart,
+                           IntBuffer unitStart, IntBuffer notes) {
+        this.metadata = metadata;
+        this.answers = answers;
+        this.exerciseStart = exerciseStart;
+        this.unitStart = unitStart;
+        this.notes = notes;
+    }
+
+    /**
+     * @return The amount of exercises.
+     */
+    public int getExerciseCount() {
+        return exerciseStart.capacity() - 1;
+    }
+
+    /**
+     * Map the given compiled file into memory.
+     * @param file The compiled file
+     * @param sourceFile The JSON file it should have been compiled from
+     * @return The compiled Module, or null if the file does not exist, is out of date or could not be read.
+     */
+    public static CompiledModule read(File file, File sourceFile) {
+        if(!file.exists())
+            return null;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if(map.limit() < HEADER_SIZE || map.getInt() != MAGIC || map.getShort() != VERSION)
+                return null;
+            map.getShort();
+            int exerciseCount = map.getInt();
+            int unitCount = map.getInt();
+            int noteCount = map.getInt();
+            int metadataOffset = map.getInt();
+            if(exerciseCount < 0 || unitCount < 0 || noteCount < 0
+                    || metadataOffset != HEADER_SIZE + 4 * (exerciseCount + 1 + unitCount + 1 + noteCount)
+                    || metadataOffset > map.limit())
+                return null;
+
+            channel.position(metadataOffset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            ModuleIndex.Entry metadata = ModuleIndex.Entry.read(in);
+            if(!metadata.matches(sourceFile))
+                return null;
+            int answerCount = in.readInt();
+            List<String> answers = new ArrayList<>(answerCount);
+            for(int i = 0; i < answerCount; i++)
+                answers.add(in.readUTF());
+
+            map.position(HEADER_SIZE);
+            IntBuffer ints = map.slice().asIntBuffer();
+            IntBuffer exerciseStart = slice(ints, 0, exerciseCount + 1);
+            IntBuffer unitStart = slice(ints, exerciseCount + 1, unitCount + 1);
+            IntBuffer notes = slice(ints, exerciseCount + 1 + unitCount + 1, noteCount);
+            return new CompiledModule(metadata, answers, exerciseStart, unitStart, notes);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if(raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a compiled file, through a temporary file so the file is never left half written.
+     * @param file The compiled file
+     * @param metadata The metadata of the JSON file the data comes from
+     * @param answers The answers of the Module
+     * @param exerciseStart The index of the first exercise unit of every exercise, followed by the amount of units
+     * @param unitStart The index of the first note of every exercise unit, followed by the amount of notes
+     * @param notes The notes of all exercise units
+     * @throws IOException
+     */
+    public static void write(File file, ModuleIndex.Entry metadata, List<String> answers, IntBuffer exerciseStart,
+                             IntBuffer unitStart, IntBuffer notes) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(0);
+            out.writeInt(exerciseStart.capacity() - 1);
+            out.writeInt(unitStart.capacity() - 1);
+            out.writeInt(notes.capacity());
+            out.writeInt(HEADER_SIZE + 4 * (exerciseStart.capacity() + unitStart.capacity() + notes.capacity()));
+            writeInts(out, exerciseStart);
+            writeInts(out, unitStart);
+            writeInts(out, notes);
+            metadata.write(out);
+            out.writeInt(answers.size());
+            for(String answer : answers)
+                out.writeUTF(answer);
+        } finally {
+            out.close();
+        }
+        if(!tempFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw new IOException("Could not replace " + file.getName());
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, IntBuffer values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * values.capacity());
+        IntBuffer source = values.duplicate();
+        source.clear();
+        buffer.asIntBuffer().put(source);
+        out.write(buffer.array());
+    }
+
+    private static IntBuffer slice(IntBuffer ints, int offset, int length) {
+        IntBuffer duplicate = ints.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice();
+    }
+}
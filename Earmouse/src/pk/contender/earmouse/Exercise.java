@@ -1,38 +1,92 @@
 package pk.contender.earmouse;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
-/** An abstraction of an exercise, contains a List of exercise units, which are in turn Lists of Integers.
+/** An abstraction of an exercise, contains a sequence of exercise units, which are in turn sequences of notes.
  * <p>
- * An exercise is a List of one or more "exercise units", an exercise unit is a List of one or more samples to be played at once.
+ * An exercise is a sequence of one or more "exercise units", an exercise unit is one or more samples to be played at once.
  * In an exercise, the exercise units are played one after the other.<br>
  * This enables the following exercise setups:<br>
- * - A single note (for whatever reason): exerciseUnits = { { note } }<br>
- * - A single chord: exerciseUnits = { { note1, note2, note3 } }<br>
- * - A sequence of single notes or chords: exerciseUnits = { { note1, note2, note3 }, { note1, note2, note3 }, {etc} }
- * 
+ * - A single note (for whatever reason): { { note } }<br>
+ * - A single chord: { { note1, note2, note3 } }<br>
+ * - A sequence of single notes or chords: { { note1, note2, note3 }, { note1, note2, note3 }, {etc} }
+ * <p>
+ * The notes of all exercise units are stored one after the other in {@link #notes}, {@link #unitStart} tells
+ * where each exercise unit starts. An Exercise can be filled again and again, e.g. by
+ * {@link Module#getExercise(int, Exercise)}, its arrays only grow when a larger exercise does not fit.
+ *
  * @author Paul Klinkenberg <pklinken.development@gmail.com>
  */
 public class Exercise {
 
 	/**
-	 * Contains the exercise units of this Exercise.
+	 * The notes of all exercise units of this Exercise, only the first {@link #getNoteCount()} are used.
+	 * In a concrete Exercise as returned by {@link Module#getExercise(int)}, 0 refers to C2 and 41 to E5.
+	 */
+	public int [] notes = new int[8];
+	/**
+	 * For every exercise unit the index in {@link #notes} of its first note, followed by the amount of notes,
+	 * so exercise unit i consists of the notes in the range [unitStart[i], unitStart[i + 1]>.
+	 */
+	public int [] unitStart = new int[4];
+	/** The amount of exercise units */
+	private int unitCount = 0;
+
+	/**
+	 * The time in milliseconds from the start of one exercise unit to the start of the next one.
 	 * <p>
-	 * The values relate to each other as follows:<br>
-	 * If exerciseUnits = { { note1, note2, note3 }, { note4, note5, note6 } }<br>
-	 * note1 is _always_ 0, this is basically the center of the entire exercise.<br>
-	 * note2 and note3 are offsets from note1 and can only be positive.<br>
-	 * note4 is the offset from note1(so zero) of the lowest note for this exercise unit.<br>
-	 * note5 and note6 are offsets from note4 and can only be positive.<br>
-	 * As an example a representation of an Exercise with 2 exercise units, a Major chord and then
-	 * the same Major chord played a whole tone lower: <br>
-	 * exerciseUnits = { { 0, 4, 7}, {-2, 4, 7} }
-	 */
-	public final List<List<Integer>> exerciseUnits;
-	
+	 * An exercise unit keeps sounding for {@link #unitRelease} milliseconds after this while it fades out,
+	 * overlapping the next exercise unit. The last exercise unit always rings out in full.
+	 * If 0, every exercise unit is played in full before the next one starts.
+	 */
+	public int unitDuration = 0;
+	/** The time in milliseconds over which an exercise unit fades out after {@link #unitDuration} */
+	public int unitRelease = 0;
+
 	public Exercise() {
-		exerciseUnits = new ArrayList<>();
 	}
 
+	/**
+	 * Empty this Exercise and make room for the given amount of exercise units and notes.
+	 * @param unitCount The amount of exercise units
+	 * @param noteCount The total amount of notes
+	 */
+	public void reset(int unitCount, int noteCount) {
+		if(unitStart.length < unitCount + 1)
+			unitStart = Arrays.copyOf(unitStart, unitCount + 1);
+		if(notes.length < noteCount)
+			notes = Arrays.copyOf(notes, noteCount);
+		this.unitCount = unitCount;
+	}
+
+	/**
+	 * @return The amount of exercise units.
+	 */
+	public int getUnitCount() {
+		return unitCount;
+	}
+
+	/**
+	 * @return The total amount of notes in all exercise units.
+	 */
+	public int getNoteCount() {
+		return unitStart[unitCount];
+	}
+
+	/**
+	 * @param unit The index of an exercise unit
+	 * @return The amount of notes in the exercise unit.
+	 */
+	public int getUnitSize(int unit) {
+		return unitStart[unit + 1] - unitStart[unit];
+	}
+
+	/**
+	 * @param unit The index of an exercise unit
+	 * @param index The index of the note in the exercise unit
+	 * @return The note.
+	 */
+	public int getNote(int unit, int index) {
+		return notes[unitStart[unit] + index];
+	}
 }
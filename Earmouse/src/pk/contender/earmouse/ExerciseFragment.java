@@ -2,12 +2,15 @@ package pk.contender.earmouse;
 
 import android.app.Activity;
 import android.app.Fragment;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Handler;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.TextView;
 
 import java.util.List;
 
@@ -38,6 +41,16 @@ public class ExerciseFragment extends Fragment {
      * exercise.
      */
     private static final int EXERCISE_READY_NOTPLAYED = 2;
+    /**
+     * State in continuous mode in which an exercise has been correctly answered and the next exercise is
+     * queued in the MediaFragment, it starts playing after the configured gap or as soon as the user clicks
+     * on the ButtonGrid or Play button.
+     * @see pk.contender.earmouse.MediaFragment#queueExercise(PrerenderQueue.Entry)
+     */
+    private static final int EXERCISE_ADVANCING = 3;
+
+    /** The default gap in milliseconds between a correct answer and the next exercise in continuous mode */
+    static final int DEFAULT_CONTINUOUS_GAP = 1000;
 
     /* SharedPreferences constants */
     private static final String PREFERENCES_ISEMPTY = "preferences_isEmpty";
@@ -46,6 +59,8 @@ public class ExerciseFragment extends Fragment {
     private static final String PREFERENCES_CURRENTEXERCISE = "preferences_currentExercise";
     private static final String PREFERENCES_EXERCISESTATE = "preferences_exerciseState";
     static final String PREFERENCES_ISFRESHINTENT = "preferences_isFreshIntent";
+    static final String PREFERENCES_CONTINUOUS = "preferences_continuous";
+    static final String PREFERENCES_CONTINUOUS_GAP = "preferences_continuousGap";
 
     /**
      * The current state.
@@ -67,13 +82,61 @@ public class ExerciseFragment extends Fragment {
      * The index of the {@link pk.contender.earmouse.Exercise} in {@link #mod} that we are currently doing.
      */
     private int currentExercise = -1;
+    /**
+     * Picks and renders the upcoming exercises of {@link #mod} in the background.
+     */
+    private PrerenderQueue prerenderQueue = null;
 
     /** Set to true if we are currently hiding the UI
      * The UI is hidden when there is no {@link pk.contender.earmouse.Module} selected. */
     private boolean isEmpty;
+    /** True while the UI shows the loading state and waits for the Modules to be loaded, the saved state is
+     * restored once they are, see {@link #moduleListLoadedListener} */
+    private boolean awaitingModuleList = false;
 
     private Activity mCtx;
 
+    private final Handler mHandler = new Handler();
+    /** Starts the queued exercise once the gap after a correct answer has passed */
+    private final Runnable advanceRunnable = new Runnable() {
+        @Override
+        public void run() {
+            advance();
+        }
+    };
+    /** Restores the saved state once the Modules were loaded in the background, see {@link #onActivityCreated} */
+    private final Main.OnModuleListLoadedListener moduleListLoadedListener = new Main.OnModuleListLoadedListener() {
+        @Override
+        public void onModuleListLoaded(List<Module> moduleList) {
+            Main.removeOnModuleListLoadedListener(this);
+            if(!awaitingModuleList || !isAdded())
+                return;
+            awaitingModuleList = false;
+            setNotEmpty();
+            restoreState();
+            if(isResumed() && exerciseState == EXERCISE_ADVANCING)
+                mHandler.postDelayed(advanceRunnable, getContinuousGap(mCtx));
+        }
+    };
+
+    /**
+     * @param context Any context
+     * @return True if the user enabled continuous mode, in which the next exercise starts by itself after a correct answer.
+     */
+    static boolean isContinuousMode(Context context) {
+        SharedPreferences settings = context.getSharedPreferences(Main.PREFS_NAME, Activity.MODE_PRIVATE);
+        return settings.getBoolean(PREFERENCES_CONTINUOUS, false);
+    }
+
+    /**
+     * @param context Any context
+     * @return The gap in milliseconds between a correct answer and the next exercise in continuous mode.
+     */
+    static int getContinuousGap(Context context) {
+        SharedPreferences settings = context.getSharedPreferences(Main.PREFS_NAME, Activity.MODE_PRIVATE);
+        return settings.getInt(PREFERENCES_CONTINUOUS_GAP, DEFAULT_CONTINUOUS_GAP);
+    }
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         View view = inflater.inflate(R.layout.fragment_exercise, container, false);
@@ -86,13 +149,35 @@ public class ExerciseFragment extends Fragment {
     }
 
     /**
-     * Initializes or restores the Fragment's state. If the parent activity was started from an {@link android.content.Intent}, set up the UI
-     * from the given position value, otherwise restore the state the fragment was left in.
+     * Initializes or restores the Fragment's state, see {@link #restoreState()}. If the Modules are still being
+     * loaded, e.g. when the activity is recreated after the process was killed, shows the loading state and
+     * restores once they are loaded.
      */
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
 
+        if(Main.getModuleList() == null) {
+            awaitingModuleList = true;
+            setEmpty();
+            View fragmentView = getView();
+            if(fragmentView != null) {
+                TextView messageText = (TextView) fragmentView.findViewById(R.id.message_text);
+                if(messageText != null)
+                    messageText.setText(R.string.loading_modules);
+            }
+            Main.addOnModuleListLoadedListener(moduleListLoadedListener);
+            Main.refreshModuleListAsync(mCtx);
+            return;
+        }
+        restoreState();
+    }
+
+    /**
+     * If the parent activity was started from an {@link android.content.Intent}, set up the UI from the given
+     * position value, otherwise restore the state the fragment was left in. The Modules must be loaded.
+     */
+    private void restoreState() {
         SharedPreferences settings = mCtx.getSharedPreferences(Main.PREFS_NAME, Activity.MODE_PRIVATE);
         Bundle extras = mCtx.getIntent().getExtras();
         // Restore state
@@ -195,9 +280,11 @@ public class ExerciseFragment extends Fragment {
             if (v != null)
                 v.setVisibility(View.GONE);
 
-            v = fragmentView.findViewById(R.id.message_text);
-            if(v != null)
-                v.setVisibility(View.VISIBLE);
+            TextView messageText = (TextView) fragmentView.findViewById(R.id.message_text);
+            if(messageText != null) {
+                messageText.setText(R.string.no_module_selected);
+                messageText.setVisibility(View.VISIBLE);
+            }
         }
 
         isEmpty = true;
@@ -272,7 +359,7 @@ public class ExerciseFragment extends Fragment {
     public void setModule(int position) {
 
         List<Module> moduleList = Main.getModuleList();
-        if(position >= moduleList.size() || position < 0) {
+        if(moduleList == null || position >= moduleList.size() || position < 0) {
             mod = null;
             modIndex = -1;
             modId = -1;
@@ -302,6 +389,20 @@ public class ExerciseFragment extends Fragment {
         updateFeedbackStatistics();
     }
 
+    /**
+     * Stop rendering exercises in the background.
+     */
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        Main.removeOnModuleListLoadedListener(moduleListLoadedListener);
+        mHandler.removeCallbacks(advanceRunnable);
+        if(prerenderQueue != null) {
+            prerenderQueue.shutdown();
+            prerenderQueue = null;
+        }
+    }
+
     public int getModuleIndex() {
         return modIndex;
     }
@@ -312,9 +413,16 @@ public class ExerciseFragment extends Fragment {
     @Override
     public void onPause() {
         super.onPause();
+        // Resumed in onResume(), the queued exercise is prepared again if the activity is recreated.
+        mHandler.removeCallbacks(advanceRunnable);
         // Possibly superfluous to write to disk here.
         if(mod != null)
             mod.saveState();
+        // Don't leave answers waiting for the delayed flush while we are in the background
+        StatsPersister.getInstance().flush();
+        // Nothing was restored yet, keep the saved state for when the Modules are loaded
+        if(awaitingModuleList)
+            return;
 
         SharedPreferences settings = mCtx.getSharedPreferences(Main.PREFS_NAME, Activity.MODE_PRIVATE);
         settings.edit().putBoolean(PREFERENCES_ISEMPTY, isEmpty).putInt(PREFERENCES_MODINDEX, modIndex)
@@ -326,20 +434,27 @@ public class ExerciseFragment extends Fragment {
     @Override
     public void onResume() {
         super.onResume();
-        if(mod != null)
+        if(mod != null) {
             mod.refreshState();
+            if(prerenderQueue != null)
+                prerenderQueue.onStatsChanged();
+        }
+        if(!awaitingModuleList && exerciseState == EXERCISE_ADVANCING)
+            mHandler.postDelayed(advanceRunnable, getContinuousGap(mCtx));
     }
 
     /**
      * Prepare an exercise for this activity.
      * <p>
-     * This function will receive an Exercise index from the loaded Module and use that to:<br>
+     * This function will take the next Exercise from the {@link pk.contender.earmouse.PrerenderQueue} of the loaded Module
+     * and use that to:<br>
      * - Set up the ButtonGrid with the answers<br>
-     * - Start the MediaFragment to prepare and load the required WAV file<br>
+     * - Start the MediaFragment to prepare and load the required audio<br>
      * - Set up the FeedbackBarFragment to reflect the current state.
      */
     private void prepareExercise(){
-        currentExercise = mod.getWeightedExerciseIndex();
+        mHandler.removeCallbacks(advanceRunnable);
+        PrerenderQueue.Entry entry = nextEntry();
 
         ButtonGridFragment buttonFragment = (ButtonGridFragment) getFragmentManager().findFragmentById(R.id.buttongrid);
         if(buttonFragment != null) {
@@ -349,7 +464,7 @@ public class ExerciseFragment extends Fragment {
 
         MediaFragment mediaFragment = (MediaFragment) getFragmentManager().findFragmentById(R.id.media);
         if(mediaFragment != null) {
-            mediaFragment.prepareExercise(mod.getExercise(currentExercise));
+            mediaFragment.prepareExercise(entry);
         } else
             Log.d("DEBUG", "MediaFragment is null");
 
@@ -357,18 +472,79 @@ public class ExerciseFragment extends Fragment {
         exerciseState = EXERCISE_READY_NOTPLAYED;
     }
 
+    /**
+     * Take the next Exercise from the {@link pk.contender.earmouse.PrerenderQueue} of the loaded Module and make
+     * it the current exercise, (re)creating the PrerenderQueue if the Module changed.
+     * @return The PrerenderQueue entry of the new current exercise
+     */
+    private PrerenderQueue.Entry nextEntry() {
+        if(prerenderQueue == null || prerenderQueue.getModule() != mod) {
+            if(prerenderQueue != null)
+                prerenderQueue.shutdown();
+            prerenderQueue = new PrerenderQueue(mCtx.getApplicationContext(), mod, PrerenderQueue.DEFAULT_LOOKAHEAD);
+        }
+        PrerenderQueue.Entry entry = prerenderQueue.next();
+        currentExercise = entry.exerciseIndex;
+        return entry;
+    }
+
+    /**
+     * Continuous mode: queue the next exercise in the MediaFragment while the answered one may still be
+     * playing, and have it start after the configured gap.
+     */
+    private void queueExercise() {
+        PrerenderQueue.Entry entry = nextEntry();
+
+        MediaFragment mediaFragment = (MediaFragment) getFragmentManager().findFragmentById(R.id.media);
+        if(mediaFragment != null) {
+            mediaFragment.queueExercise(entry);
+        } else
+            Log.d("DEBUG", "MediaFragment is null");
+
+        setFeedbackText((String) this.getResources().getText(R.string.feedback_correct_continuous));
+        exerciseState = EXERCISE_ADVANCING;
+        mHandler.postDelayed(advanceRunnable, getContinuousGap(mCtx));
+    }
+
+    /**
+     * Start playing the exercise queued by {@link #queueExercise()}, if we are still in {@link #EXERCISE_ADVANCING}.
+     */
+    private void advance() {
+        mHandler.removeCallbacks(advanceRunnable);
+        if(exerciseState != EXERCISE_ADVANCING)
+            return;
+
+        ButtonGridFragment buttonFragment = (ButtonGridFragment) getFragmentManager().findFragmentById(R.id.buttongrid);
+        if(buttonFragment != null) {
+            buttonFragment.resetGridButtonState();
+        } else
+            Log.d("DEBUG", "ButtonGridFragment is null");
+
+        MediaFragment mediaFragment = (MediaFragment) getFragmentManager().findFragmentById(R.id.media);
+        if(mediaFragment != null) {
+            mediaFragment.requestPlayback();
+        } else
+            Log.d("DEBUG", "MediaFragment is null");
+
+        setFeedbackText((String) this.getResources().getText(R.string.feedback_ready));
+        exerciseState = EXERCISE_READY;
+    }
+
     /**
      * On receiving a click event on the Play button, relay it to the MediaFragment and:
      * If the current state is {@link #EXERCISE_READY_NOTPLAYED}, move the state to {@link #EXERCISE_READY}
      * If the current state is {@link #EXERCISE_CONTINUE}, prepare an exercise and request the MediaFragment
      * to play it as soon as it is ready, and set the state to {@link #EXERCISE_READY}
+     * If the current state is {@link #EXERCISE_ADVANCING}, start the queued exercise without waiting for the gap.
      *
      * @param view The parent view where the click event was received.
      */
     public void onClickPlay(@SuppressWarnings("UnusedParameters") View view) {
         MediaFragment mediaFragment = (MediaFragment) getFragmentManager().findFragmentById(R.id.media);
         if(mediaFragment != null) {
-            if(exerciseState == EXERCISE_CONTINUE) {
+            if(exerciseState == EXERCISE_ADVANCING) {
+                advance();
+            } else if(exerciseState == EXERCISE_CONTINUE) {
                 prepareExercise();
                 mediaFragment.requestPlayback();
                 exerciseState = EXERCISE_READY;
@@ -412,7 +588,12 @@ public class ExerciseFragment extends Fragment {
                 setFeedbackText((String) this.getResources().getText(R.string.feedback_correct));
                 updateFeedbackStatistics();
                 mod.saveState();
-                exerciseState = EXERCISE_CONTINUE;
+                if(prerenderQueue != null)
+                    prerenderQueue.onStatsChanged();
+                if(isContinuousMode(mCtx))
+                    queueExercise();
+                else
+                    exerciseState = EXERCISE_CONTINUE;
             } else {
                 // Wrong answer, register with statistics and give UI feedback
                 mod.registerAnswer(currentExercise, false);
@@ -420,10 +601,15 @@ public class ExerciseFragment extends Fragment {
                 setFeedbackText((String) this.getResources().getText(R.string.feedback_incorrect));
                 updateFeedbackStatistics();
                 mod.saveState();
+                if(prerenderQueue != null)
+                    prerenderQueue.onStatsChanged();
             }
         } else if(exerciseState == EXERCISE_CONTINUE) {
             // Prepare the next exercise
             prepareExercise();
+        } else if(exerciseState == EXERCISE_ADVANCING) {
+            // Skip the rest of the gap
+            advance();
         }
         // Activity not ready to receive answer events, discard input.
     }
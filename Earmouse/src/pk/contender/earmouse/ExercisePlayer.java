@@ -0,0 +1,529 @@
+package pk.contender.earmouse;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays generated exercise audio by writing PCM data straight into an {@link android.media.AudioTrack}.
+ * <p>
+ * Short exercises are loaded into a static AudioTrack, so playback starts without any buffering and can be
+ * repeated without writing the data again. Exercises that are too large for a static buffer are played
+ * in streaming mode, where the player's writer thread feeds the AudioTrack from the PCM buffer. Exercises that
+ * are still being rendered can be played in streaming mode straight from a
+ * {@link pk.contender.earmouse.PcmRingBuffer}, see {@link #prepareStream}.
+ * <p>
+ * Exercises are loaded into a small ring of {@link Slot}s, each with its own AudioTrack. A slot is owned by
+ * exactly one party at a time: it is free, being written by whoever called {@link #prepare}, ready to be
+ * played, or the current slot of the player. So the next exercise can be written while the current one is
+ * playing or being replayed, and switching to it with {@link #activate(Slot)} is immediate. Every slot still
+ * creates a new AudioTrack for each exercise, the one it replaces is released in the background.
+ * <p>
+ * All methods are safe to call from any thread, the {@link OnCompletionListener} is called on the UI thread.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class ExercisePlayer {
+
+    /** Buffers larger than this (in bytes) are played in streaming mode instead of static mode */
+    private static final int MAX_STATIC_BUFFER_SIZE = 1024 * 1024;
+    /** The default amount of slots: one playing, one ready and one being written */
+    public static final int DEFAULT_SLOT_COUNT = 3;
+    /** The length of the pieces a streaming AudioTrack is written in, a stale writer stops within one piece */
+    private static final int WRITE_CHUNK_MILLIS = 20;
+    /** The time after which the idle writer thread stops */
+    private static final int WRITER_IDLE_SECONDS = 10;
+
+    /* Slot states */
+    /** The slot holds no exercise and can be claimed by {@link #prepare} */
+    private static final int SLOT_FREE = 0;
+    /** The slot is being written by {@link #prepare} */
+    private static final int SLOT_WRITING = 1;
+    /** The slot holds an exercise and is waiting for {@link #activate(Slot)} */
+    private static final int SLOT_READY = 2;
+    /** The slot is the current slot of the player, playing or not */
+    private static final int SLOT_PLAYING = 3;
+
+    /**
+     * Listener interface for when playback reaches the end of the loaded exercise.
+     */
+    public interface OnCompletionListener {
+        public void onCompletion(ExercisePlayer player);
+    }
+
+    /**
+     * An AudioTrack with the exercise loaded into it, see {@link #prepare}.
+     * Its fields are guarded by the ExercisePlayer, except while it is being written.
+     */
+    public static class Slot {
+        private int state = SLOT_FREE;
+        /** Incremented whenever the slot is freed, so that a stale owner can tell */
+        private int useCount = 0;
+        /** Orders the ready slots, the oldest ready slot is reclaimed first */
+        private long readySequence = 0;
+        private AudioTrack track = null;
+        /** True if {@link #track} was created in streaming mode */
+        private boolean streaming = false;
+        /** The loaded PCM data, kept for replaying in streaming mode, null while the exercise is being streamed */
+        private short [] pcm = null;
+        /** The buffer the exercise is streamed from the renderer through, null once playback was rewound */
+        private PcmRingBuffer ring = null;
+        /** True once a writer started reading {@link #ring} */
+        private boolean ringStarted = false;
+        /** The amount of shorts in {@link #pcm} that make up the exercise */
+        private int pcmLength = 0;
+        private int sampleRate = RenderFormat.NATIVE_RATE;
+        private int channelCount = RenderFormat.NATIVE_CHANNELS;
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    /** Runs the writers of the streaming slots one at a time, see {@link #startWriter()} */
+    private final ThreadPoolExecutor writer;
+    private OnCompletionListener completionListener = null;
+
+    private final Slot [] slots;
+    /** The slot in state {@link #SLOT_PLAYING}, null if none */
+    private Slot current = null;
+    private long readySequence = 0;
+    /** Incremented whenever the current slot changes or rewinds, so a stale writer knows to stop */
+    private int generation = 0;
+    /** The {@link #generation} for which the last writer was started, -1 if none */
+    private int writerGeneration = -1;
+    private boolean playing = false;
+
+    public ExercisePlayer() {
+        this(DEFAULT_SLOT_COUNT);
+    }
+
+    /**
+     * @param slotCount The amount of slots, at least 2
+     */
+    public ExercisePlayer(int slotCount) {
+        slots = new Slot[Math.max(2, slotCount)];
+        for(int i = 0; i < slots.length; i++)
+            slots[i] = new Slot();
+        // The thread stops when idle, so a player that is no longer used needs no shutting down
+        writer = new ThreadPoolExecutor(1, 1, WRITER_IDLE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "ExercisePlayer writer");
+                    }
+                });
+        writer.allowCoreThreadTimeOut(true);
+    }
+
+    public void setOnCompletionListener(OnCompletionListener listener) {
+        completionListener = listener;
+    }
+
+    /**
+     * Load the given PCM data for playback, replacing whatever was loaded before.
+     * <p>
+     * Same as {@link #prepare} followed by {@link #activate(Slot)}.
+     * The buffer is not copied and must not be modified while it is loaded.
+     * @param data 16-bit PCM data
+     * @param length The amount of shorts in data to play
+     * @param format The format of data
+     * @return True on success, false if the AudioTrack could not be initialised.
+     */
+    public boolean load(short [] data, int length, RenderFormat format) {
+        Slot slot = prepare(data, length, format);
+        return slot != null && activate(slot);
+    }
+
+    /**
+     * Write the given PCM data into a free slot, without disturbing the current slot.
+     * <p>
+     * If there is no free slot, the slot that has been ready the longest is reclaimed. The caller owns the
+     * returned slot until it passes it to {@link #activate(Slot)} or {@link #recycle(Slot)}, but a slot that
+     * is not activated may be reclaimed by later calls.
+     * The buffer is not copied and must not be modified while it is loaded.
+     * @param data 16-bit PCM data
+     * @param length The amount of shorts in data to play
+     * @param format The format of data
+     * @return The ready slot, or null if the AudioTrack could not be initialised or no slot was available.
+     */
+    public Slot prepare(short [] data, int length, RenderFormat format) {
+        Slot slot;
+        int useCount;
+        synchronized (this) {
+            slot = claimSlot();
+            if(slot == null) {
+                Log.d("DEBUG", "ExercisePlayer: no slot available");
+                return null;
+            }
+            slot.state = SLOT_WRITING;
+            useCount = slot.useCount;
+        }
+
+        // Creating the AudioTrack and writing the data may take a while, the slot is ours in the meantime
+        boolean written = writeSlot(slot, data, length, format);
+
+        synchronized (this) {
+            if(!written || slot.useCount != useCount) {
+                // Failed, or the player was released while we were writing
+                freeSlot(slot);
+                return null;
+            }
+            slot.state = SLOT_READY;
+            slot.readySequence = ++readySequence;
+            return slot;
+        }
+    }
+
+    /**
+     * Create a streaming AudioTrack in a free slot, that plays the PCM data from the given buffer as it comes in.
+     * <p>
+     * Once all data was rendered, hand it to {@link #finishStream} so that the exercise can be replayed.
+     * Otherwise the same as {@link #prepare}.
+     * @param ring The buffer the renderer streams the 16-bit PCM data into
+     * @param format The format of the data
+     * @return The ready slot, or null if the AudioTrack could not be initialised or no slot was available.
+     */
+    public Slot prepareStream(PcmRingBuffer ring, RenderFormat format) {
+        Slot slot = prepare(null, 0, format);
+        if(slot != null) {
+            synchronized (this) {
+                slot.ring = ring;
+                slot.ringStarted = false;
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Hand the complete PCM data to a slot created by {@link #prepareStream}, used for replaying it.
+     * @param slot The slot
+     * @param data 16-bit PCM data, must not be modified while it is loaded
+     * @param length The amount of shorts in data to play
+     */
+    public synchronized void finishStream(Slot slot, short [] data, int length) {
+        if(slot.state != SLOT_READY && slot.state != SLOT_PLAYING)
+            return;
+        slot.pcm = data;
+        slot.pcmLength = length;
+        notifyAll();
+    }
+
+    /**
+     * @param slot A slot returned by {@link #prepare} or {@link #prepareStream}
+     * @return True if the slot is the current slot of the player.
+     */
+    public synchronized boolean isCurrent(Slot slot) {
+        return slot == current;
+    }
+
+    /**
+     * Make the given ready slot the current slot, the previous current slot is stopped and freed.
+     * @param slot A slot returned by {@link #prepare}
+     * @return True on success, false if the slot was reclaimed or freed in the meantime.
+     */
+    public synchronized boolean activate(Slot slot) {
+        if(slot.state != SLOT_READY)
+            return false;
+        if(current != null)
+            freeSlot(current);
+        playing = false;
+        generation++;
+        notifyAll();
+        current = slot;
+        slot.state = SLOT_PLAYING;
+
+        if(slot.pcm != null)
+            slot.track.setNotificationMarkerPosition(slot.pcmLength / slot.channelCount);
+        slot.track.setPlaybackPositionUpdateListener(new AudioTrack.OnPlaybackPositionUpdateListener() {
+            @Override
+            public void onMarkerReached(AudioTrack t) {
+                onPlaybackCompleted(t);
+            }
+
+            @Override
+            public void onPeriodicNotification(AudioTrack t) { }
+        }, mHandler);
+        return true;
+    }
+
+    /**
+     * Give back a slot returned by {@link #prepare} that will not be activated.
+     * @param slot The slot
+     */
+    public synchronized void recycle(Slot slot) {
+        if(slot.state == SLOT_READY)
+            freeSlot(slot);
+    }
+
+    /**
+     * @return True if there is an exercise loaded that can be played.
+     */
+    public synchronized boolean isLoaded() {
+        return current != null;
+    }
+
+    /**
+     * @return True if the loaded exercise is currently playing.
+     */
+    public synchronized boolean isPlaying() {
+        return playing;
+    }
+
+    /**
+     * Start or resume playback of the loaded exercise.
+     */
+    public synchronized void start() {
+        if(current == null || playing)
+            return;
+        current.track.play();
+        playing = true;
+        if(current.streaming && writerGeneration != generation)
+            startWriter();
+    }
+
+    /**
+     * Pause playback, {@link #start()} resumes from the same position.
+     */
+    public synchronized void pause() {
+        if(current == null || !playing)
+            return;
+        current.track.pause();
+        playing = false;
+    }
+
+    /**
+     * Stop playback and rewind to the start of the loaded exercise.
+     */
+    public synchronized void rewind() {
+        if(current == null)
+            return;
+        playing = false;
+        generation++;
+        notifyAll();
+        AudioTrack track = current.track;
+        track.stop();
+        if(current.streaming) {
+            track.flush();
+            // Replay from the complete data, the writer waits for it if the exercise is still being rendered.
+            // Aborting the ring makes the renderer finish without waiting for us.
+            if(current.ring != null) {
+                current.ring.abort();
+                current.ring = null;
+            }
+        } else
+            track.reloadStaticData();
+        if(current.pcm != null)
+            track.setNotificationMarkerPosition(current.pcmLength / current.channelCount);
+    }
+
+    /**
+     * Stop playback and release the loaded exercise, slots that are ready or being written are kept.
+     */
+    public synchronized void reset() {
+        playing = false;
+        generation++;
+        notifyAll();
+        if(current != null) {
+            freeSlot(current);
+            current = null;
+        }
+    }
+
+    /**
+     * Release all resources, including slots that are ready or being written.
+     * The player can still be reused by calling {@link #load(short[], int, RenderFormat)}.
+     */
+    public synchronized void release() {
+        reset();
+        for(Slot slot : slots) {
+            if(slot.state == SLOT_WRITING)
+                // prepare() frees the slot once it is done writing
+                slot.useCount++;
+            else if(slot.state != SLOT_FREE)
+                freeSlot(slot);
+        }
+    }
+
+    /**
+     * @return A free slot, or the slot that has been ready the longest after freeing it, or null if all slots
+     * are in use.
+     */
+    private Slot claimSlot() {
+        Slot oldestReady = null;
+        for(Slot slot : slots) {
+            if(slot.state == SLOT_FREE)
+                return slot;
+            if(slot.state == SLOT_READY && (oldestReady == null || slot.readySequence < oldestReady.readySequence))
+                oldestReady = slot;
+        }
+        if(oldestReady != null)
+            freeSlot(oldestReady);
+        return oldestReady;
+    }
+
+    /**
+     * Create an AudioTrack for the given data in the given slot, called without holding the lock.
+     * @return True on success.
+     */
+    private static boolean writeSlot(Slot slot, short [] data, int length, RenderFormat format) {
+        int sampleRate = format.sampleRate;
+        int channelCount = format.channelCount;
+        int bufferSize = length * 2;
+        boolean streaming = data == null || bufferSize > MAX_STATIC_BUFFER_SIZE;
+        int channelConfig = (channelCount == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO);
+        if(streaming)
+            bufferSize = Math.max(AudioTrack.getMinBufferSize(sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT) * 2,
+                    sampleRate * channelCount / 5);
+
+        AudioTrack track;
+        try {
+            track = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT,
+                    bufferSize, streaming ? AudioTrack.MODE_STREAM : AudioTrack.MODE_STATIC);
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        slot.track = track;
+        slot.streaming = streaming;
+        slot.pcm = data;
+        slot.pcmLength = length;
+        slot.sampleRate = sampleRate;
+        slot.channelCount = channelCount;
+
+        if(!streaming) {
+            track.write(data, 0, length);
+            if(track.getState() != AudioTrack.STATE_INITIALIZED) {
+                Log.d("DEBUG", "AudioTrack not initialized after writing static data");
+                return false;
+            }
+        } else if(track.getState() == AudioTrack.STATE_UNINITIALIZED) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Silence the AudioTrack of the given slot, have it released on the writer thread and mark the slot free.
+     * <p>
+     * Releasing an AudioTrack can take a while and this is called from the UI thread while holding the lock.
+     * The writer thread releases it once a writer that may still be using it has stopped.
+     */
+    private void freeSlot(Slot slot) {
+        if(slot.ring != null) {
+            slot.ring.abort();
+            slot.ring = null;
+        }
+        slot.ringStarted = false;
+        if(slot.track != null) {
+            final AudioTrack track = slot.track;
+            if(track.getState() != AudioTrack.STATE_UNINITIALIZED) {
+                track.pause();
+                // Lets a write that is blocked on a full buffer return
+                track.flush();
+            }
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    track.release();
+                }
+            });
+            slot.track = null;
+        }
+        slot.pcm = null;
+        slot.pcmLength = 0;
+        slot.state = SLOT_FREE;
+        slot.useCount++;
+    }
+
+    private synchronized void onPlaybackCompleted(AudioTrack t) {
+        if(current == null || t != current.track)
+            return;
+        rewind();
+        if(completionListener != null)
+            completionListener.onCompletion(this);
+    }
+
+    /**
+     * Queues a writer on {@link #writer} that feeds the streaming AudioTrack of the current slot, from its ring
+     * buffer if the exercise is still being streamed from the renderer and from its PCM data otherwise. The
+     * writes block while playback is paused. A writer that became stale, see {@link #generation}, stops after
+     * the piece it is writing, so the next one starts right after it.
+     */
+    private void startWriter() {
+        final Slot slot = current;
+        final AudioTrack writeTrack = slot.track;
+        final PcmRingBuffer ring = slot.ringStarted ? null : slot.ring;
+        final int channelCount = slot.channelCount;
+        final int chunk = slot.sampleRate * channelCount * WRITE_CHUNK_MILLIS / 1000;
+        final int writeGeneration = generation;
+        writerGeneration = generation;
+        // The ring buffer can only be played once, replays use the PCM data
+        slot.ringStarted = true;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if(ring != null)
+                        writeFromRing();
+                    else
+                        writeFromPcm();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            private void writeFromRing() throws InterruptedException {
+                short [] buf = new short[chunk];
+                int total = 0;
+                int count;
+                while((count = ring.read(buf, 0, chunk)) > 0) {
+                    if(!isCurrentWriter())
+                        return;
+                    int written = writeTrack.write(buf, 0, count);
+                    if(written < 0)
+                        return;
+                    total += count;
+                }
+                // Now that the length is known, have the completion listener called at the end
+                synchronized (ExercisePlayer.this) {
+                    if(writeGeneration == generation && !ring.isAborted())
+                        writeTrack.setNotificationMarkerPosition(total / channelCount);
+                }
+            }
+
+            private void writeFromPcm() throws InterruptedException {
+                final short [] data;
+                final int length;
+                synchronized (ExercisePlayer.this) {
+                    while(slot.pcm == null && writeGeneration == generation)
+                        ExercisePlayer.this.wait();
+                    if(writeGeneration != generation)
+                        return;
+                    data = slot.pcm;
+                    length = slot.pcmLength;
+                    writeTrack.setNotificationMarkerPosition(length / channelCount);
+                }
+                for(int offset = 0; offset < length; offset += chunk) {
+                    if(!isCurrentWriter())
+                        return;
+                    int written = writeTrack.write(data, offset, Math.min(chunk, length - offset));
+                    if(written < 0)
+                        return;
+                }
+            }
+
+            private boolean isCurrentWriter() {
+                synchronized (ExercisePlayer.this) {
+                    return writeGeneration == generation;
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,174 @@
+package pk.contender.earmouse;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ShortBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Generates the audio of an {@link pk.contender.earmouse.Exercise} as 16-bit PCM data.
+ * <p>
+ * Every exercise unit is mixed from the samples in the {@link pk.contender.earmouse.SampleBank} and
+ * the units are laid out on a timeline according to the Exercise's unit duration and release.
+ * Rendered exercises are kept in the {@link pk.contender.earmouse.RenderCache} so an exercise with the
+ * same notes only has to be mixed once. Exercises are rendered in the {@link pk.contender.earmouse.RenderFormat}
+ * given at construction.
+ * <p>
+ * Long exercises are mixed in parallel on a small shared thread pool, bounded by the amount of processors.
+ * <p>
+ * Instances are not thread-safe, every thread that renders exercises should use its own.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class ExerciseRenderer {
+
+    /** The maximum amount of threads that mix a single exercise, including the rendering thread */
+    private static final int MIX_PARALLELISM = Math.min(4, Runtime.getRuntime().availableProcessors());
+    /** Shared by all renderers to mix parts of long exercises, null until first needed */
+    private static ExecutorService sMixExecutor = null;
+
+    /** Source of the decoded samples we mix our exercises from */
+    private final SampleBank mSampleBank;
+    private final RenderCache mRenderCache;
+    private final PcmMixer mMixer;
+    private final RenderFormat mFormat;
+    /** Scratch array the samples of an exercise unit are collected in, grown when needed */
+    private ShortBuffer [] mUnitSources = new ShortBuffer[0];
+
+    /**
+     * @param context Any context
+     * @param format The format to render exercises in
+     */
+    public ExerciseRenderer(Context context, RenderFormat format) {
+        mSampleBank = SampleBank.getInstance(context);
+        mRenderCache = RenderCache.getInstance(context);
+        mFormat = format;
+        mMixer = new PcmMixer(format.channelCount);
+    }
+
+    public RenderFormat getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * Generate the audio for the given Exercise, or fetch it from the {@link pk.contender.earmouse.RenderCache}.
+     * @param exercise The Exercise to render
+     * @return 16-bit PCM data in the format of this renderer, this buffer is shared and must not be modified.
+     * @throws IOException if one of the samples could not be loaded, or an
+     * {@link java.io.InterruptedIOException} if the thread was interrupted while mixing
+     */
+    public short [] render(Exercise exercise) throws IOException {
+        String key = RenderCache.keyFor(exercise, mFormat);
+        short [] output = mRenderCache.get(key);
+        if(output == null) {
+            output = mix(exercise, null);
+            mRenderCache.put(key, output);
+        }
+        return output;
+    }
+
+    /**
+     * Fetch the audio for the given Exercise from the {@link pk.contender.earmouse.RenderCache} only.
+     * @param exercise The Exercise to look up
+     * @return 16-bit PCM data in the format of this renderer, or null if it is not cached.
+     * This buffer is shared and must not be modified.
+     */
+    public short [] getCached(Exercise exercise) {
+        return mRenderCache.get(RenderCache.keyFor(exercise, mFormat));
+    }
+
+    /**
+     * Generate the audio for the given Exercise and stream it into sink while it is being mixed, so that it
+     * can be played before mixing is done. The complete audio is stored in the {@link pk.contender.earmouse.RenderCache}.
+     * <p>
+     * Mixing happens in order on the calling thread and blocks while sink is full. Sink is closed when done,
+     * and aborted on failure.
+     * @param exercise The Exercise to render
+     * @param sink The buffer to stream the audio into
+     * @return 16-bit PCM data in the format of this renderer, this buffer is shared and must not be modified.
+     * @throws IOException if one of the samples could not be loaded, or an
+     * {@link java.io.InterruptedIOException} if the thread was interrupted while mixing
+     */
+    public short [] render(Exercise exercise, PcmRingBuffer sink) throws IOException {
+        short [] output;
+        try {
+            output = mix(exercise, sink);
+        } catch (IOException | RuntimeException e) {
+            sink.abort();
+            throw e;
+        }
+        sink.close();
+        mRenderCache.put(RenderCache.keyFor(exercise, mFormat), output);
+        return output;
+    }
+
+    /**
+     * Mix all the exercise units of the given Exercise and lay them out on a timeline.
+     * <p>
+     * Exercise unit i starts i * {@link Exercise#unitDuration} milliseconds into the exercise and is cut off
+     * after its release, only the last exercise unit rings out in full. The parts where exercise units overlap
+     * are summed. If the Exercise has no unit duration, the exercise units are concatenated at full length.
+     * <p>
+     * The length of the exercise is known before anything is mixed, so every exercise unit is mixed straight
+     * into its final position in the returned buffer.
+     * @param exercise The Exercise to render
+     * @param sink If not null, the audio is also streamed into this buffer while it is mixed, the exercise is
+     *             then mixed in order on the calling thread
+     * @return 16-bit PCM data in the format of this renderer
+     * @throws IOException if one of the samples could not be loaded
+     */
+    private short [] mix(Exercise exercise, PcmRingBuffer sink) throws IOException {
+        int unitCount = exercise.getUnitCount();
+        boolean timed = exercise.unitDuration > 0;
+        int durationLength = mFormat.shortsFor(exercise.unitDuration);
+        int releaseLength = mFormat.shortsFor(Math.max(0, exercise.unitRelease));
+
+        mMixer.clear();
+        int onset = 0;
+        for (int i = 0; i < unitCount; i++) {
+            int unitSize = exercise.getUnitSize(i);
+            if(mUnitSources.length < unitSize)
+                mUnitSources = new ShortBuffer[unitSize];
+            for (int j = 0; j < unitSize; j++)
+                mUnitSources[j] = mSampleBank.getSample(exercise.getNote(i, j), mFormat);
+
+            int length = PcmMixer.mixLength(mUnitSources, unitSize);
+            if(timed && i < unitCount - 1) {
+                length = Math.min(length, durationLength + releaseLength);
+                mMixer.addUnit(mUnitSources, unitSize, onset, length, durationLength, releaseLength);
+                onset += durationLength;
+            } else {
+                mMixer.addUnit(mUnitSources, unitSize, onset, length, 0, 0);
+                onset += length;
+            }
+        }
+
+        short [] output = new short[mMixer.getLength()];
+        try {
+            if(sink != null)
+                mMixer.render(output, sink);
+            else if(MIX_PARALLELISM > 1)
+                mMixer.render(output, getMixExecutor(), MIX_PARALLELISM);
+            else
+                mMixer.render(output);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Mixing was cancelled");
+        } finally {
+            mMixer.clear();
+        }
+
+        return output;
+    }
+
+    /**
+     * @return The shared executor for mixing parts of exercises, creating it if necessary.
+     */
+    private static synchronized ExecutorService getMixExecutor() {
+        if(sMixExecutor == null)
+            sMixExecutor = Executors.newFixedThreadPool(MIX_PARALLELISM - 1);
+        return sMixExecutor;
+    }
+}
@@ -11,7 +11,10 @@ import android.content.SharedPreferences;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.media.AudioManager;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.StrictMode;
 import android.text.Html;
 import android.text.Spanned;
@@ -31,12 +34,12 @@ import android.widget.Toast;
 
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 /**
@@ -68,6 +71,8 @@ public class Main extends Activity implements ModuleListFragment.OnModuleSelecte
 
     /** Set to true to enable StrictMode testing */
     private static final boolean DEVELOPER_MODE = false;
+    /** Set to true to decode all samples into the {@link pk.contender.earmouse.SampleBank} at startup */
+    private static final boolean PRELOAD_SAMPLES = true;
 
     /** The index of the currently selected entry in the ModuleListFragment */
     //private int selectionIndex;
@@ -88,13 +93,33 @@ public class Main extends Activity implements ModuleListFragment.OnModuleSelecte
     private List<Module> selection = null;
     /**
      * Lists all the Modules currently installed, used by the Main Activity's ListView
-     * adapter.
+     * adapter. Null until the first load completed, only ever replaced as a whole.
      */
-    private static List<Module> mModules;
+    private static volatile List<Module> mModules;
+    /** The module files are parsed on this many threads at a time */
+    private static final int LOAD_PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors());
+    /** Executor that parses module files, created when first needed */
+    private static ExecutorService sLoadExecutor = null;
+    /** The background load started by {@link #refreshModuleListAsync(Context)}, null if none is running */
+    private static AsyncTask<Void, Void, List<Module>> sLoadTask = null;
+    /** Tracks the installed modules and their files, created when first needed */
+    private static ModuleCatalog sCatalog = null;
+    /** Notified on the UI thread when {@link #mModules} changed, used and modified only on the UI thread */
+    private static final List<OnModuleListLoadedListener> sLoadListeners = new ArrayList<>();
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+    /** True while a notification of the listeners is posted but did not run yet */
+    private static boolean sNotifyPending = false;
+    /** The nesting depth of {@link #beginModuleListBatch()} */
+    private static int sBatchDepth = 0;
+    /** True if {@link #mModules} changed during the current batch */
+    private static boolean sBatchChanged = false;
+
     /**
-     * Adapter used by the Main Activity's ListView.
+     * Listener interface for when the list of installed Modules was (re)loaded or changed.
      */
-    private ModuleListAdapter mAdapter;
+    public interface OnModuleListLoadedListener {
+        public void onModuleListLoaded(List<Module> moduleList);
+    }
     /**
      * Dialog currently being shown or null if none.
      * Only used for the About dialog, not the ActionMode DialogFragments
@@ -137,7 +162,12 @@ public class Main extends Activity implements ModuleListFragment.OnModuleSelecte
             settings.edit().putBoolean(PREFS_FIRSTLAUNCH, false).apply();
         }
 
-        refreshModuleList(this);
+        // Parse the modules in the background, the ModuleListFragment shows progress in the meantime
+        if(mModules == null)
+            refreshModuleListAsync(this);
+
+        if(PRELOAD_SAMPLES)
+            SampleBank.getInstance(this).preloadAllAsync(RenderFormat.getPreferred(this));
 
         setContentView(R.layout.activity_main);
 
@@ -148,12 +178,11 @@ public class Main extends Activity implements ModuleListFragment.OnModuleSelecte
         // Set the in-app volume control to always control the stream we use for playback.
         setVolumeControlStream(AudioManager.STREAM_MUSIC);
 
-        // Set up the Context ActionMode and the mAdapter field
+        // Set up the Context ActionMode
         ListView lv = null;
         ModuleListFragment moduleListFragment = (ModuleListFragment) getFragmentManager().findFragmentById(R.id.fragment_modulelist);
         if(moduleListFragment != null){
             lv = moduleListFragment.getListView();
-            mAdapter = (ModuleListAdapter) moduleListFragment.getListAdapter();
         }
         if(lv != null) {
             lv.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
@@ -262,7 +291,27 @@ public class Main extends Activity implements ModuleListFragment.OnModuleSelecte
     }
 
     /**
-     * Implements the Manage and About Actionbar options.
+     * Check the render format options according to the preferred {@link pk.contender.earmouse.RenderFormat}.
+     * @param menu The options menu
+     * @return True to display the menu
+     */
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        RenderFormat format = RenderFormat.getPreferred(this);
+        menu.findItem(R.id.action_render_mono).setChecked(format.channelCount == 1);
+        menu.findItem(R.id.action_render_reducedrate).setChecked(format.sampleRate == RenderFormat.REDUCED_RATE);
+        menu.findItem(R.id.action_continuous).setChecked(ExerciseFragment.isContinuousMode(this));
+        menu.findItem(R.id.action_continuous_gap).setEnabled(ExerciseFragment.isContinuousMode(this));
+        int gap = ExerciseFragment.getContinuousGap(this);
+        menu.findItem(R.id.action_continuous_gap_500).setChecked(gap == 500);
+        menu.findItem(R.id.action_continuous_gap_1000).setChecked(gap == 1000);
+        menu.findItem(R.id.action_continuous_gap_2000).setChecked(gap == 2000);
+        menu.findItem(R.id.action_continuous_gap_3000).setChecked(gap == 3000);
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    /**
+     * Implements the Manage, render format, continuous mode and About Actionbar options.
      * @param item Menu item that was selected
      * @return False to allow normal menu processing to proceed, true to consume it here.
      */
@@ -276,6 +325,37 @@ public class Main extends Activity implements ModuleListFragment.OnModuleSelecte
             Intent intent = new Intent(getApplicationContext(), ModuleManagerActivity.class);
             startActivity(intent);
             return true;
+        } else if(id == R.id.action_render_mono || id == R.id.action_render_reducedrate) {
+            RenderFormat format = RenderFormat.getPreferred(this);
+            boolean mono = format.channelCount == 1;
+            boolean reducedRate = format.sampleRate == RenderFormat.REDUCED_RATE;
+            if(id == R.id.action_render_mono)
+                mono = !mono;
+            else
+                reducedRate = !reducedRate;
+            RenderFormat.setPreferred(this, mono, reducedRate);
+            // Convert the samples for the new format before the next exercise needs them
+            if(PRELOAD_SAMPLES)
+                SampleBank.getInstance(this).preloadAllAsync(RenderFormat.getPreferred(this));
+            return true;
+        } else if(id == R.id.action_continuous) {
+            SharedPreferences settings = getSharedPreferences(Main.PREFS_NAME, Activity.MODE_PRIVATE);
+            settings.edit().putBoolean(ExerciseFragment.PREFERENCES_CONTINUOUS, !ExerciseFragment.isContinuousMode(this)).apply();
+            return true;
+        } else if(id == R.id.action_continuous_gap_500 || id == R.id.action_continuous_gap_1000
+                || id == R.id.action_continuous_gap_2000 || id == R.id.action_continuous_gap_3000) {
+            int gap;
+            if(id == R.id.action_continuous_gap_500)
+                gap = 500;
+            else if(id == R.id.action_continuous_gap_1000)
+                gap = 1000;
+            else if(id == R.id.action_continuous_gap_2000)
+                gap = 2000;
+            else
+                gap = 3000;
+            SharedPreferences settings = getSharedPreferences(Main.PREFS_NAME, Activity.MODE_PRIVATE);
+            settings.edit().putInt(ExerciseFragment.PREFERENCES_CONTINUOUS_GAP, gap).apply();
+            return true;
         } else if(id == R.id.action_about) {
             // FIXME: Externalise string
             Spanned s = Html.fromHtml("<p>Earmouse " + VERSION + " by Paul Klinkenberg\n" +
@@ -325,47 +405,168 @@ public class Main extends Activity implements ModuleListFragment.OnModuleSelecte
     }
 
 
+    /**
+     * @return The adapter of the ListView in the ModuleListFragment, null if the modules are still loading.
+     */
+    private ModuleListAdapter getModuleListAdapter() {
+        ModuleListFragment moduleListFragment = (ModuleListFragment) getFragmentManager().findFragmentById(R.id.fragment_modulelist);
+        if(moduleListFragment == null)
+            return null;
+        return (ModuleListAdapter) moduleListFragment.getListAdapter();
+    }
+
     /**
      * Loads all the locally installed modules, and returns them as a sorted list.
+     * <p>
+     * Only new and changed module files are read, see {@link ModuleCatalog#scan()}, the calling thread waits for them.
      *
      * @param ctx The context used for the File functions and the Module constructor.
      * @return A List<Module> of all the modules locally installed on the device,
      * can be empty.
      */
     static private List<Module> loadModulesList(Context ctx) {
+        ModuleCatalog catalog = getCatalog(ctx);
+        catalog.scan();
+        return catalog.getModules();
+    }
+
+    /**
+     * @return The shared executor for parsing module files, creating it if necessary.
+     */
+    private static synchronized ExecutorService getLoadExecutor() {
+        if(sLoadExecutor == null)
+            sLoadExecutor = Executors.newFixedThreadPool(LOAD_PARALLELISM);
+        return sLoadExecutor;
+    }
+
+    /**
+     * @param ctx Any context, the catalog keeps the application context
+     * @return The catalog of installed modules, creating it if necessary.
+     */
+    private static synchronized ModuleCatalog getCatalog(Context ctx) {
+        if(sCatalog == null)
+            sCatalog = new ModuleCatalog(ctx.getApplicationContext(), getLoadExecutor());
+        return sCatalog;
+    }
+
+    /**
+     * Refreshes {@link Main#mModules} to contain all the locally installed modules.
+     * Blocks until done, see {@link #refreshModuleListAsync(Context)} for use on the UI thread.
+     */
+    static public void refreshModuleList(Context ctx) {
+        publishModuleList(loadModulesList(ctx));
+    }
 
-        List<Module> moduleList = new ArrayList<>();
-        File currentDir = ctx.getDir("files", MODE_PRIVATE);
-        FilenameFilter moduleFilter = new FilenameFilter() {
+    /**
+     * Reloads all the locally installed modules in the background, then publishes them to {@link Main#mModules}.
+     * Must be called on the UI thread.
+     */
+    static public void refreshModuleListAsync(Context ctx) {
+        final Context appContext = ctx.getApplicationContext();
+        if(sLoadTask != null)
+            return;
+        sLoadTask = new AsyncTask<Void, Void, List<Module>>() {
+            @Override
+            protected List<Module> doInBackground(Void... params) {
+                return loadModulesList(appContext);
+            }
 
             @Override
-            public boolean accept(File dir, String filename) {
-                return filename.startsWith("module");
+            protected void onPostExecute(List<Module> result) {
+                sLoadTask = null;
+                publishModuleList(result);
             }
-        };
-        File moduleFileList [] = currentDir.listFiles(moduleFilter);
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
 
-        for (File moduleFile : moduleFileList) {
-            moduleList.add(new Module(ctx, moduleFile));
-        }
+    /**
+     * Add a Module that was just written to its module file to {@link Main#mModules}, replacing the Module
+     * with the same file if there is one. Does not read any other module file.
+     * @param ctx The context
+     * @param mod The Module
+     * @param moduleFile The file it was written to
+     */
+    static public void onModuleWritten(Context ctx, Module mod, File moduleFile) {
+        ModuleCatalog catalog = getCatalog(ctx);
+        catalog.put(mod, moduleFile);
+        publishModuleList(catalog.getModules());
+    }
 
-        Collections.sort(moduleList);
+    /**
+     * Remove a Module whose module file was just deleted from {@link Main#mModules}.
+     * @param ctx The context
+     * @param moduleFile The deleted module file
+     */
+    static public void onModuleRemoved(Context ctx, File moduleFile) {
+        ModuleCatalog catalog = getCatalog(ctx);
+        if(!catalog.remove(moduleFile).isEmpty())
+            publishModuleList(catalog.getModules());
+    }
 
-        return moduleList;
+    /**
+     * Defer notifying the {@link OnModuleListLoadedListener}s until {@link #endModuleListBatch()}, so that installing
+     * or deleting a number of Modules updates the ListViews once. Batches can be nested.
+     */
+    static public synchronized void beginModuleListBatch() {
+        sBatchDepth++;
     }
 
     /**
-     * Refreshes {@link Main#mModules} to contain all the locally installed modules.
-     * Invalidates the current adapter used for the ListView in {@link pk.contender.earmouse.Main}.
+     * End a batch started by {@link #beginModuleListBatch()}, notifying the listeners if the list changed during it.
      */
-    static public void refreshModuleList(Context ctx) {
-        mModules = loadModulesList(ctx);
+    static public synchronized void endModuleListBatch() {
+        if(sBatchDepth > 0 && --sBatchDepth == 0 && sBatchChanged) {
+            sBatchChanged = false;
+            scheduleNotify();
+        }
+    }
+
+    /**
+     * Publish a new list of installed Modules to {@link Main#mModules} and notify the
+     * {@link OnModuleListLoadedListener}s on the UI thread, unless a batch is running. Any changes published
+     * before the listeners run are handled by a single notification.
+     * @param moduleList The new list
+     */
+    static private synchronized void publishModuleList(List<Module> moduleList) {
+        mModules = moduleList;
+        if(sBatchDepth > 0)
+            sBatchChanged = true;
+        else
+            scheduleNotify();
     }
 
+    static private synchronized void scheduleNotify() {
+        if(sNotifyPending)
+            return;
+        sNotifyPending = true;
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                List<Module> moduleList;
+                synchronized (Main.class) {
+                    sNotifyPending = false;
+                    moduleList = mModules;
+                }
+                for (OnModuleListLoadedListener listener : new ArrayList<>(sLoadListeners))
+                    listener.onModuleListLoaded(moduleList);
+            }
+        });
+    }
+
+    static public void addOnModuleListLoadedListener(OnModuleListLoadedListener listener) {
+        sLoadListeners.add(listener);
+    }
+
+    static public void removeOnModuleListLoadedListener(OnModuleListLoadedListener listener) {
+        sLoadListeners.remove(listener);
+    }
 
     /**
-     * Returns the value of {@link Main#mModules}.
-     * @return the value of {@link Main#mModules}.
+     * Returns the value of {@link Main#mModules}, without waiting for a background load.
+     * <p>
+     * While the modules are being loaded this returns null, callers show a loading state and wait for their
+     * {@link OnModuleListLoadedListener}, see {@link #refreshModuleListAsync(Context)}.
+     * @return the value of {@link Main#mModules}, null if the modules were not loaded yet.
      */
     static public List<Module> getModuleList() {
         return mModules;
@@ -422,7 +623,9 @@ public class Main extends Activity implements ModuleListFragment.OnModuleSelecte
                 .findFragmentById(R.id.fragment_exercise);
         if(fragment != null && fragment.isInLayout()) {
             fragment.onAnswerSelected(position);
-            mAdapter.notifyDataSetChanged();
+            ModuleListAdapter adapter = getModuleListAdapter();
+            if(adapter != null)
+                adapter.notifyDataSetChanged();
         }
     }
 
@@ -444,14 +647,18 @@ public class Main extends Activity implements ModuleListFragment.OnModuleSelecte
     public void onDeleteConfirm(DialogFragment dialog) {
 
         int deleted = 0;
+        ModuleListAdapter adapter = getModuleListAdapter();
 
+        beginModuleListBatch();
         for (Module mod : selection) {
             if(mod != null) {
-                mAdapter.remove(mod);
+                if(adapter != null)
+                    adapter.remove(mod);
                 mod.purgeModule();
                 deleted++;
             }
         }
+        endModuleListBatch();
 
         //selectionIndex = 0;
         ExerciseFragment fragment = (ExerciseFragment) getFragmentManager()
@@ -460,7 +667,7 @@ public class Main extends Activity implements ModuleListFragment.OnModuleSelecte
             fragment.setModule(0);
         }
 
-        //mAdapter.notifyDataSetChanged();
+        //adapter.notifyDataSetChanged();
 
         Resources res = getResources();
         String s = deleted + " " + res.getQuantityString(R.plurals.plural_module, deleted) + " " + getString(R.string.cab_deleted);
@@ -496,7 +703,9 @@ public class Main extends Activity implements ModuleListFragment.OnModuleSelecte
             }
         }
 
-        mAdapter.notifyDataSetChanged();
+        ModuleListAdapter adapter = getModuleListAdapter();
+        if(adapter != null)
+            adapter.notifyDataSetChanged();
 
         ExerciseFragment fragment = (ExerciseFragment) getFragmentManager().findFragmentById(R.id.fragment_exercise);
         if (fragment != null && fragment.isInLayout()) {
@@ -12,7 +12,9 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
@@ -28,6 +30,8 @@ public class Module implements Comparable<Module>{
 
 	/** Constants referring to the difficulty of a Module */
 	final static public int DIFF_BEGINNER = 1, DIFF_AMATEUR = 2, DIFF_INTERMEDIATE = 3, DIFF_EXPERT = 4;
+	/** The note duration and release in milliseconds used for Modules that do not specify them */
+	final static public int DEFAULT_NOTE_DURATION = 750, DEFAULT_NOTE_RELEASE = 150;
 	
 	private final Context mCtx;
 	/** The unique ID of this Module */
@@ -41,8 +45,13 @@ public class Module implements Comparable<Module>{
 	private int lowestNote, highestNote;
 	/** The difficulty of this Module */
 	private int difficulty;
-    /** Reference to this Module's statistics */
-	private ModuleStats stats;
+    /**
+     * Reference to this Module's statistics, null until they are needed, see {@link #getStats()}. Volatile because
+     * {@link #getExerciseRanking()} is called from a background thread.
+     */
+	private volatile ModuleStats stats;
+	/** The totals of this Module's statistics, used while {@link #stats} is not loaded */
+	private StatsSummary statsSummary = StatsSummary.EMPTY;
 	/** The version of create_module.py used to create this Module */
 	private String toolVersion;
 
@@ -56,11 +65,32 @@ public class Module implements Comparable<Module>{
      * Used in ListViews to give the user an indication of a Module's contents beyond the title
      */
     private String shortDescription;
+    /** The time in milliseconds between the exercise units of this Module's exercises, see {@link Exercise#unitDuration} */
+    private int noteDuration = DEFAULT_NOTE_DURATION;
+    /** The time in milliseconds over which exercise units fade out, see {@link Exercise#unitRelease} */
+    private int noteRelease = DEFAULT_NOTE_RELEASE;
 
-	/** List of the answers for this Module's exercises */
+	/** List of the answers for this Module's exercises, see {@link #loadData()} */
 	private List<String> answerList = new ArrayList<>();
-	/** List of this Module's Exercises */
-	private final List<Exercise> exerciseList = new ArrayList<>();
+	/**
+	 * The exercises of this Module, stored like the notes of an {@link Exercise}, see {@link #loadData()}.
+	 * <p>
+	 * Exercise i consists of the exercise units in the range [exerciseStart[i], exerciseStart[i + 1]>, exercise unit j
+	 * consists of the notes in the range [unitStart[j], unitStart[j + 1]>. The first note of an exercise unit is its offset
+	 * from the first note of the exercise, which is always 0. The other notes are offsets from the first note of their exercise
+	 * unit and can only be positive. E.g. a Major chord and then the same Major chord played a whole tone lower:
+	 * { { 0, 4, 7}, {-2, 4, 7} }
+	 * <p>
+	 * When read from the {@link CompiledModule} these are views on the mapped file, so the exercises take up no heap
+	 * and are only paged in as they are used. They are only read with absolute gets, which is safe from several threads.
+	 */
+	private IntBuffer notes = IntBuffer.allocate(0), unitStart = IntBuffer.wrap(new int[] { 0 }),
+			exerciseStart = IntBuffer.wrap(new int[] { 0 });
+	/** For every exercise the largest negative and the largest positive offset of its notes, see {@link #computeBounds()} */
+	private int [] exerciseLow = new int[0], exerciseHigh = new int[0];
+	/** The file to read {@link #answerList} and the exercises from when they are first needed, null once they are loaded */
+	private File unloadedFile = null;
+	private final Random rng = new Random();
 
     /**
      * Contructs an empty (and useless) Module
@@ -95,7 +125,158 @@ public class Module implements Comparable<Module>{
 			e.printStackTrace();
 
         }
-		stats = new ModuleStats(mCtx, id);
+		initStats();
+	}
+
+	/**
+	 * Constructs a Module from its entry in the {@link ModuleIndex}, the exercises and answers are only read
+	 * from the module file when they are first needed.
+	 * @param context The application context
+	 * @param moduleFile The File the entry was made from
+	 * @param entry The entry for moduleFile
+	 */
+	public Module (Context context, File moduleFile, ModuleIndex.Entry entry) {
+		mCtx = context;
+		initModuleFromEntry(entry);
+		unloadedFile = moduleFile;
+		initStats();
+	}
+
+	/**
+	 * Take over the metadata of a new version of this Module's file, keeping the statistics that are already loaded.
+	 * The exercises and answers are read from the new file when they are next needed.
+	 * @param moduleFile The File the entry was made from
+	 * @param entry The entry for moduleFile, with the id of this Module
+	 */
+	public synchronized void update(File moduleFile, ModuleIndex.Entry entry) {
+		initModuleFromEntry(entry);
+		unloadedFile = moduleFile;
+	}
+
+	/**
+	 * Loads this Module's properties from its entry in the {@link ModuleIndex}
+	 * @param entry The entry
+	 */
+	private void initModuleFromEntry(ModuleIndex.Entry entry) {
+		id = entry.id;
+		title = entry.title;
+		description = entry.description;
+		shortDescription = entry.shortDescription;
+		lowestNote = entry.lowestNote;
+		highestNote = entry.highestNote;
+		difficulty = entry.difficulty;
+		toolVersion = entry.toolVersion;
+		moduleVersion = entry.moduleVersion;
+		noteDuration = entry.noteDuration;
+		noteRelease = entry.noteRelease;
+	}
+
+	/**
+	 * Use the statistics summary if it is up to date, loading all answers is only worth it once the Module is opened.
+	 */
+	private void initStats() {
+		StatsSummary summary = ModuleStats.readSummary(mCtx, id);
+		if(summary != null)
+			statsSummary = summary;
+		else
+			stats = new ModuleStats(mCtx, id);
+	}
+
+	/**
+	 * @param moduleFile The File this Module was read from or written to
+	 * @return An entry for the {@link ModuleIndex} describing this Module.
+	 */
+	public ModuleIndex.Entry getIndexEntry(File moduleFile) {
+		return new ModuleIndex.Entry(moduleFile, id, title, description, shortDescription, lowestNote, highestNote,
+				difficulty, toolVersion, moduleVersion, noteDuration, noteRelease);
+	}
+
+	/**
+	 * Read this Module's exercises and answers if that was put off by {@link #Module(Context, File, ModuleIndex.Entry)}.
+	 * <p>
+	 * They are read from the {@link CompiledModule} if it is up to date, otherwise the JSON is parsed and compiled
+	 * for the next time.
+	 */
+	private synchronized void loadData() {
+		if(unloadedFile == null)
+			return;
+		// Replaces whatever an earlier version of the module file had, see update()
+		answerList = new ArrayList<>();
+		CompiledModule compiled = CompiledModule.read(getCompiledFile(), unloadedFile);
+		if(compiled != null) {
+			initModuleFromCompiled(compiled);
+		} else {
+			Log.d("DEBUG", "Module: compiling module " + id);
+			try {
+				FileInputStream fis = new FileInputStream(unloadedFile);
+				FileReader filereader = new FileReader(fis.getFD());
+				initModuleFromJson(filereader);
+				filereader.close();
+				fis.close();
+				writeCompiled(unloadedFile);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		unloadedFile = null;
+	}
+
+	/**
+	 * @return The file holding the {@link CompiledModule} of this Module.
+	 */
+	private File getCompiledFile() {
+		return new File(mCtx.getDir("files", Context.MODE_PRIVATE), "module_" + id + ".bin");
+	}
+
+	/**
+	 * Loads this Module's exercises and answers from the given CompiledModule
+	 * @param compiled The CompiledModule
+	 */
+	private void initModuleFromCompiled(CompiledModule compiled) {
+		answerList.addAll(compiled.answers);
+		exerciseStart = compiled.exerciseStart;
+		unitStart = compiled.unitStart;
+		notes = compiled.notes;
+		computeBounds();
+	}
+
+	/**
+	 * Write the {@link CompiledModule} of this Module.
+	 * @param sourceFile The JSON file this Module was read from or written to
+	 * @throws IOException
+	 */
+	private void writeCompiled(File sourceFile) throws IOException {
+		CompiledModule.write(getCompiledFile(), getIndexEntry(sourceFile), answerList, exerciseStart, unitStart, notes);
+	}
+
+	/**
+	 * Compute {@link #exerciseLow} and {@link #exerciseHigh} from the exercises, so that {@link #getExercise(int, Exercise)}
+	 * does not have to.
+	 */
+	private void computeBounds() {
+		int exerciseCount = exerciseStart.capacity() - 1;
+		exerciseLow = new int[exerciseCount];
+		exerciseHigh = new int[exerciseCount];
+		for(int i = 0; i < exerciseCount; i++) {
+			int negativeOffset = 0;
+			int positiveOffset = 0;
+			for(int unit = exerciseStart.get(i); unit < exerciseStart.get(i + 1); unit++) {
+				if(unitStart.get(unit) == unitStart.get(unit + 1))
+					continue;
+				int root = notes.get(unitStart.get(unit));
+				if(root < negativeOffset)
+					negativeOffset = root;
+				int span = 0;
+				for(int note = unitStart.get(unit) + 1; note < unitStart.get(unit + 1); note++) {
+					if(notes.get(note) > span)
+						span = notes.get(note);
+				}
+				if(root + span > positiveOffset)
+					positiveOffset = root + span;
+			}
+			exerciseLow[i] = negativeOffset;
+			exerciseHigh[i] = positiveOffset;
+		}
 	}
 
 	/**
@@ -114,20 +295,38 @@ public class Module implements Comparable<Module>{
 	}
 
 	/**
-	 * Save a Module's statistics
-	 * @see ModuleStats#saveModuleStats()
+	 * Save a Module's statistics in the background
+	 * @see StatsPersister#markDirty(ModuleStats)
 	 */
 	public void saveState () {
-        stats.saveModuleStats();
+        if(stats != null && stats.getUnsavedAnswers() > 0)
+            StatsPersister.getInstance().markDirty(stats);
 	}
 
 	/**
-	 * Reload this Module's statistics 
+	 * Reload this Module's statistics, unless they have answers that are still waiting to be saved
+	 * in which case they are the most recent already. Loads all answers, call this when the Module is opened.
 	 */
 	public void refreshState() {
+		if(stats != null && stats.getUnsavedAnswers() > 0)
+			return;
 		stats = new ModuleStats(mCtx, id);
 	}
 
+	/**
+	 * @return This Module's statistics, loading them if necessary.
+	 */
+	private ModuleStats getStats() {
+		ModuleStats current = stats;
+		if(current != null)
+			return current;
+		synchronized (this) {
+			if(stats == null)
+				stats = new ModuleStats(mCtx, id);
+			return stats;
+		}
+	}
+
 	/**
 	 * Loads this Module's properties and data from the JSON data of the given Reader
 	 * @param r The Reader from which to read the JSON data
@@ -167,22 +366,14 @@ public class Module implements Comparable<Module>{
                 case "moduleVersion":
                     this.moduleVersion = reader.nextInt();
                     break;
+                case "noteDuration":
+                    this.noteDuration = reader.nextInt();
+                    break;
+                case "noteRelease":
+                    this.noteRelease = reader.nextInt();
+                    break;
                 case "exerciseList":
-                    reader.beginArray();
-                    for (int i = 0; reader.hasNext(); i++) {
-                        this.exerciseList.add(new Exercise());
-                        reader.beginArray();
-                        for (int j = 0; reader.hasNext(); j++) {
-                            this.exerciseList.get(i).exerciseUnits.add(new ArrayList<Integer>());
-                            reader.beginArray();
-                            while (reader.hasNext()) {
-                                this.exerciseList.get(i).exerciseUnits.get(j).add(reader.nextInt());
-                            }
-                            reader.endArray();
-                        }
-                        reader.endArray();
-                    }
-                    reader.endArray();
+                    readExerciseList(reader);
                     break;
                 case "answerList":
                     reader.beginArray();
@@ -200,6 +391,51 @@ public class Module implements Comparable<Module>{
 		reader.close();
 	}
 
+	/**
+	 * Reads the exercises of this Module from the exerciseList of its JSON data into {@link #notes}, {@link #unitStart}
+	 * and {@link #exerciseStart}
+	 * @param reader The JsonReader, positioned at the exerciseList
+	 * @throws IOException
+	 */
+	private void readExerciseList(JsonReader reader) throws IOException {
+		int exerciseCount = 0, unitCount = 0, noteCount = 0;
+		int [] exercises = new int[16], units = new int[32], values = new int[64];
+
+		reader.beginArray();
+		while (reader.hasNext()) {
+			exercises = ensureCapacity(exercises, exerciseCount + 1);
+			exercises[exerciseCount++] = unitCount;
+			reader.beginArray();
+			while (reader.hasNext()) {
+				units = ensureCapacity(units, unitCount + 1);
+				units[unitCount++] = noteCount;
+				reader.beginArray();
+				while (reader.hasNext()) {
+					values = ensureCapacity(values, noteCount + 1);
+					values[noteCount++] = reader.nextInt();
+				}
+				reader.endArray();
+			}
+			reader.endArray();
+		}
+		reader.endArray();
+
+		exercises = Arrays.copyOf(exercises, exerciseCount + 1);
+		exercises[exerciseCount] = unitCount;
+		units = Arrays.copyOf(units, unitCount + 1);
+		units[unitCount] = noteCount;
+		exerciseStart = IntBuffer.wrap(exercises);
+		unitStart = IntBuffer.wrap(units);
+		notes = IntBuffer.wrap(Arrays.copyOf(values, noteCount));
+		computeBounds();
+	}
+
+	private static int [] ensureCapacity(int [] array, int capacity) {
+		if(array.length >= capacity)
+			return array;
+		return Arrays.copyOf(array, Math.max(capacity, array.length * 2));
+	}
+
     /**
      * Generate a random number between [0 - limit>, with a linearly descending distribution from 0 to limit.
      * <p>Example distribution of 10000 calls with limit == 5:
@@ -213,7 +449,6 @@ public class Module implements Comparable<Module>{
      * @return a random number between [0 - limit> in a linearly descending distribution from 0 to limit.
      */
     private int getLinearRandomNumber(int limit) {
-        Random rng = new Random();
         int randomMultiplier = limit * (limit + 1) / 2;
         int randomNumber = rng.nextInt(randomMultiplier);
 
@@ -226,14 +461,17 @@ public class Module implements Comparable<Module>{
     }
 
 	/**
-	 * Returns an index to one of this Module's exercises that is random but weighted towards certain properties.
-     * <p>
-     * Specifically, it sorts all available exercises first on success rate and then on how often they were attempted.
-     * It then uses {@link #getLinearRandomNumber} to pick one, thus preferring items higher on the list.
-     *
-	 * @return A weighted index to one of this Module's exercises.
+	 * Returns the indices of this Module's exercises sorted first on success rate and then on how often they
+	 * were attempted, both ascending.
+	 * <p>
+	 * This is the order {@link #getWeightedExerciseIndex()} picks from, so as long as the ranking stays the
+	 * same the chances of picking a particular exercise stay the same.
+	 * <p>
+	 * Sorts all exercises, so {@link pk.contender.earmouse.PrerenderQueue} calls this on a background thread.
+	 *
+	 * @return The indices of this Module's exercises, ranked.
 	 */
-	public int getWeightedExerciseIndex() {
+	public int [] getExerciseRanking() {
 
         /**
          * Combines an exercise with the current success rate and the frequency of occurrences.
@@ -266,14 +504,39 @@ public class Module implements Comparable<Module>{
             }
         }
 
+        loadData();
         List<ratedExercise> ratedExerciseList = new ArrayList<>();
-        for(int index = 0; index < exerciseList.size(); index++) {
-            ratedExerciseList.add(new ratedExercise(index, stats.exerciseSuccessRate(index), stats.exerciseCount(index)));
+        for(int index = 0; index < exerciseStart.capacity() - 1; index++) {
+            ratedExerciseList.add(new ratedExercise(index, getStats().exerciseSuccessRate(index), getStats().exerciseCount(index)));
         }
         Collections.sort(ratedExerciseList);
         // ratedExerciseList is now the list of all exercises in this module sorted by success rate and count
 
-        return ratedExerciseList.get(getLinearRandomNumber(ratedExerciseList.size())).getExerciseIndex();
+        int [] ranking = new int[ratedExerciseList.size()];
+        for(int i = 0; i < ranking.length; i++)
+            ranking[i] = ratedExerciseList.get(i).getExerciseIndex();
+        return ranking;
+	}
+
+	/**
+	 * Returns an index to one of this Module's exercises that is random but weighted towards certain properties.
+     * <p>
+     * Specifically, it ranks all available exercises with {@link #getExerciseRanking()}, first on success rate and then on
+     * how often they were attempted. It then uses {@link #getLinearRandomNumber} to pick one, thus preferring items higher on the list.
+     *
+	 * @return A weighted index to one of this Module's exercises.
+	 */
+	public int getWeightedExerciseIndex() {
+        return getWeightedExerciseIndex(getExerciseRanking());
+	}
+
+	/**
+	 * Picks an exercise index from a ranking previously obtained from {@link #getExerciseRanking()}.
+	 * @param ranking The ranked exercise indices to pick from
+	 * @return A weighted index to one of this Module's exercises.
+	 */
+	int getWeightedExerciseIndex(int [] ranking) {
+        return ranking[getLinearRandomNumber(ranking.length)];
 	}
 
 	/**
@@ -301,58 +564,65 @@ public class Module implements Comparable<Module>{
 	 * @return The Module's answer list
 	 */
 	public List<String> getAnswerList() {
+		loadData();
 		return answerList;
 	}
 
 	/**
 	 * Generates an Exercise that can be used by {@link pk.contender.earmouse.MediaFragment} to generate
      * a WAV sample.
+	 * @param exerciseIndex The index of the Exercise to generate.
+	 * @return An Exercise instance that can be used to prepare a WAV sample.
+	 * @see #getExercise(int, Exercise)
+	 */
+	public Exercise getExercise(int exerciseIndex) {
+		return getExercise(exerciseIndex, new Exercise());
+	}
+
+	/**
+	 * Generates an Exercise that can be used by {@link pk.contender.earmouse.MediaFragment} to generate
+     * a WAV sample, into the given Exercise which is reused.
 	 * <p> 
-	 * The Exercise objects in {@link #exerciseList} are an abstract representation of a sequence of notes/chords.
-     * This function maps the Exercise at the given index to a random point between {@link #lowestNote} and {@link #highestNote}.
+	 * The exercises in {@link #notes} are an abstract representation of a sequence of notes/chords.
+     * This function maps the exercise at the given index to a random point between {@link #lowestNote} and {@link #highestNote}.
      * The result can be used by {@link pk.contender.earmouse.MediaFragment} to generate a WAV sample.
+     * Nothing is allocated unless the arrays of output are too small.
      * @param exerciseIndex The index of the Exercise to generate.
-	 * @return An Exercise instance that can be used to prepare a WAV sample.
+	 * @param output The Exercise to fill, its previous contents are discarded
+	 * @return output
 	 */
-	public Exercise getExercise(int exerciseIndex) {
-		Exercise resultExercise = new Exercise();
-		
-		int positiveOffset = 0;
-		int negativeOffset = 0;
-		for(List<Integer> exerciseUnit : exerciseList.get(exerciseIndex).exerciseUnits) {
-			if(exerciseUnit.get(0) < negativeOffset)
-				negativeOffset = exerciseUnit.get(0);
-			int span = 0;
-			for(int i = 1;i < exerciseUnit.size(); i++) {
-				if(exerciseUnit.get(i) > span) 
-					span = exerciseUnit.get(i);
-			}
-			if((exerciseUnit.get(0) + span) > positiveOffset)
-				positiveOffset = (exerciseUnit.get(0) + span);
-		}
-		// At this point negativeOffset is the largest negative offset to be found in this exercise
-		// and positiveOffset is the largest positive offset.
-		
-		// So now we can generate a random baseOffset that will not exceed the bounds of highestNote
+	public Exercise getExercise(int exerciseIndex, Exercise output) {
+		loadData();
+		int firstUnit = exerciseStart.get(exerciseIndex);
+		int unitCount = exerciseStart.get(exerciseIndex + 1) - firstUnit;
+		int firstNote = unitStart.get(firstUnit);
+		int noteCount = unitStart.get(firstUnit + unitCount) - firstNote;
+
+		output.reset(unitCount, noteCount);
+		output.unitDuration = noteDuration;
+		output.unitRelease = noteRelease;
+
+		// exerciseLow is the largest negative offset to be found in this exercise and exerciseHigh the largest
+		// positive offset, so we can generate a random baseOffset that will not exceed the bounds of highestNote
 		// or lowestNote as prescribed by the Module.
-		
-		Random rng = new Random();
-		int delta = (highestNote - positiveOffset) - (lowestNote - negativeOffset);
-		int baseOffset = rng.nextInt(delta) + (lowestNote - negativeOffset);
-		
-		Log.d("Debug", "exerciseIndex: " + exerciseIndex + " positiveOffset:" + positiveOffset
-				+ " negativeOffset:" + negativeOffset + " delta: " + delta + "baseOffset: " + baseOffset);
-		
-		// Now we can derive the values for the resultExercise using the baseOffset
-		for(int i = 0;i < exerciseList.get(exerciseIndex).exerciseUnits.size(); i++) {
-			resultExercise.exerciseUnits.add(new ArrayList<Integer>());
-			resultExercise.exerciseUnits.get(i).add(baseOffset + exerciseList.get(exerciseIndex).exerciseUnits.get(i).get(0));
-			for(int j = 1;j < exerciseList.get(exerciseIndex).exerciseUnits.get(i).size(); j++) {
-				resultExercise.exerciseUnits.get(i).add(resultExercise.exerciseUnits.get(i).get(0) + exerciseList.get(exerciseIndex).exerciseUnits.get(i).get(j)); 
-			}
+		int delta = (highestNote - exerciseHigh[exerciseIndex]) - (lowestNote - exerciseLow[exerciseIndex]);
+		int baseOffset = rng.nextInt(delta) + (lowestNote - exerciseLow[exerciseIndex]);
+
+		// Now we can derive the values for the output using the baseOffset
+		for(int unit = 0; unit < unitCount; unit++) {
+			int from = unitStart.get(firstUnit + unit);
+			int to = unitStart.get(firstUnit + unit + 1);
+			output.unitStart[unit] = from - firstNote;
+			if(from == to)
+				continue;
+			int root = baseOffset + notes.get(from);
+			output.notes[from - firstNote] = root;
+			for(int note = from + 1; note < to; note++)
+				output.notes[note - firstNote] = root + notes.get(note);
 		}
-		
-		return resultExercise;
+		output.unitStart[unitCount] = noteCount;
+
+		return output;
 	}
 	
 	/**
@@ -361,7 +631,7 @@ public class Module implements Comparable<Module>{
 	 * @param result The correctness of the answer
 	 */
 	public void registerAnswer(int exerciseIndex, boolean result) {
-		stats.addAnswer(exerciseIndex, result);
+		getStats().addAnswer(exerciseIndex, result);
 	}
 
 	/**
@@ -369,6 +639,8 @@ public class Module implements Comparable<Module>{
 	 * @see ModuleStats#calculateSuccessRate()
 	 */
 	public int getSuccessRate() {
+		if(stats == null)
+			return statsSummary.getSuccessRate();
 		return stats.calculateSuccessRate();
 	}
 
@@ -411,6 +683,7 @@ public class Module implements Comparable<Module>{
 	 */
 	public boolean writeModuleToJson() {
 		
+		loadData();
 		File currentDir = mCtx.getDir("files", Context.MODE_PRIVATE);
 		File modFile = new File(currentDir, "module_" + id + ".json");
 		
@@ -452,6 +725,10 @@ public class Module implements Comparable<Module>{
             writer.value(this.getToolVersion());
             writer.name("moduleVersion");
             writer.value(this.getModuleVersion());
+            writer.name("noteDuration");
+            writer.value(this.noteDuration);
+            writer.name("noteRelease");
+            writer.value(this.noteRelease);
             writer.name("answerList");
             writer.beginArray();
             for(String answer : answerList) {
@@ -460,12 +737,12 @@ public class Module implements Comparable<Module>{
             writer.endArray();
             writer.name("exerciseList");
             writer.beginArray();
-            for(Exercise exercise : exerciseList) {
+            for(int i = 0; i < exerciseStart.capacity() - 1; i++) {
                 writer.beginArray();
-                for(List<Integer> exerciseUnit : exercise.exerciseUnits) {
+                for(int unit = exerciseStart.get(i); unit < exerciseStart.get(i + 1); unit++) {
                     writer.beginArray();
-                    for(Integer value : exerciseUnit) {
-                        writer.value(value);
+                    for(int note = unitStart.get(unit); note < unitStart.get(unit + 1); note++) {
+                        writer.value(notes.get(note));
                     }
                     writer.endArray();
                 }
@@ -480,8 +757,15 @@ public class Module implements Comparable<Module>{
             return false;
         }
 
-        // Since we changed the local contents we should reload Main.mModules.
-        Main.refreshModuleList(mCtx);
+        try {
+            writeCompiled(modFile);
+        } catch (IOException e) {
+            // Not fatal, the JSON will be compiled again when the Module is opened
+            e.printStackTrace();
+        }
+
+        // Since we changed the local contents we should update Main.mModules, only this Module changed.
+        Main.onModuleWritten(mCtx, this, modFile);
 		
 		return true;
 	}
@@ -495,19 +779,24 @@ public class Module implements Comparable<Module>{
 		File currentDir = mCtx.getDir("files", Context.MODE_PRIVATE);
 		File modFile = new File(currentDir, "module_" + id + ".json");
 		
-		if(!stats.purgeStats())
+		if(!getStats().purgeStats())
 			Log.d("DEBUG", "stats.purgeStats() returned false");
 
-        return modFile.exists() && modFile.delete();
+		File compiledFile = getCompiledFile();
+		if(compiledFile.exists() && !compiledFile.delete())
+			Log.d("DEBUG", "Error deleting " + compiledFile.getName());
+
+        boolean deleted = modFile.exists() && modFile.delete();
+        Main.onModuleRemoved(mCtx, modFile);
+        return deleted;
     }
 
     /**
      * Reset the statistics for this Module
      */
     public void resetStats() {
-        if(stats != null)
-            if(!stats.purgeStats())
-                Log.d("DEBUG", "Error deleting statistics");
+        if(!getStats().purgeStats())
+            Log.d("DEBUG", "Error deleting statistics");
         stats = new ModuleStats(mCtx, id);
     }
 
@@ -537,6 +826,8 @@ public class Module implements Comparable<Module>{
 	 * @see ModuleStats#exercisesCompleted
 	 */
 	public int getExercisesCompleted() {
+		if(stats == null)
+			return statsSummary.correctCount;
 		return stats.exercisesCompleted();
 	}
 
@@ -0,0 +1,243 @@
+package pk.contender.earmouse;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Keeps track of the installed Modules by the id, length and modification time of their module files, so that
+ * the list of Modules can be brought up to date by handling only what changed.
+ * <p>
+ * {@link #scan()} compares the module files with what is tracked. Unchanged modules keep their Module object,
+ * new and changed ones are constructed from the {@link pk.contender.earmouse.ModuleIndex} if possible and parsed
+ * otherwise, and deleted ones are dropped. A changed Module keeps its Module object, updated with the new metadata,
+ * so its loaded statistics and anyone holding on to it stay valid. When a Module is installed or deleted by the App itself,
+ * {@link #put(Module, java.io.File)} and {@link #remove(java.io.File)} apply that single change without looking
+ * at the other files at all.
+ * <p>
+ * All methods are thread-safe.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class ModuleCatalog {
+
+    /** Accepts the module files, see {@link Module#writeModuleToJson()} */
+    private static final FilenameFilter MODULE_FILTER = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String filename) {
+            return filename.startsWith("module") && filename.endsWith(".json");
+        }
+    };
+
+    /**
+     * The amount of Modules added, updated and removed by a change to the catalog.
+     */
+    public static class Delta {
+        public int added = 0, updated = 0, removed = 0;
+
+        /**
+         * @return True if nothing changed.
+         */
+        public boolean isEmpty() {
+            return added == 0 && updated == 0 && removed == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "+" + added + " ~" + updated + " -" + removed;
+        }
+    }
+
+    /**
+     * An installed Module and the state of its module file when it was read.
+     */
+    private static class Tracked {
+        final int id;
+        final long length;
+        final long lastModified;
+        final Module module;
+
+        Tracked(File moduleFile, Module module) {
+            this.id = module.getId();
+            this.length = moduleFile.length();
+            this.lastModified = moduleFile.lastModified();
+            this.module = module;
+        }
+
+        boolean matches(File moduleFile) {
+            return length == moduleFile.length() && lastModified == moduleFile.lastModified();
+        }
+    }
+
+    private final Context mCtx;
+    private final File moduleDir;
+    /** Parses new and changed module files during a scan */
+    private final ExecutorService parser;
+    private final ModuleIndex index;
+    /** The installed Modules by the name of their module file */
+    private final Map<String, Tracked> tracked = new HashMap<>();
+
+    /**
+     * @param context The application context
+     * @param parser The executor to parse module files on
+     */
+    public ModuleCatalog(Context context, ExecutorService parser) {
+        mCtx = context;
+        moduleDir = context.getDir("files", Context.MODE_PRIVATE);
+        this.parser = parser;
+        index = new ModuleIndex(new File(moduleDir, ModuleIndex.INDEX_FILENAME));
+    }
+
+    /**
+     * Bring the catalog up to date with the module files. Blocks until all new and changed module files are parsed.
+     * @return What changed.
+     */
+    public synchronized Delta scan() {
+        Delta delta = new Delta();
+        File moduleFileList [] = moduleDir.listFiles(MODULE_FILTER);
+        if(moduleFileList == null)
+            moduleFileList = new File[0];
+
+        Set<String> fileNames = new HashSet<>();
+        List<File> parsedFiles = new ArrayList<>();
+        List<Future<Module>> futures = new ArrayList<>();
+        for (final File moduleFile : moduleFileList) {
+            fileNames.add(moduleFile.getName());
+            Tracked current = tracked.get(moduleFile.getName());
+            if(current != null && current.matches(moduleFile))
+                continue;
+            ModuleIndex.Entry entry = index.get(moduleFile);
+            if(entry != null) {
+                track(moduleFile, getModule(moduleFile, entry), delta);
+                continue;
+            }
+            parsedFiles.add(moduleFile);
+            futures.add(parser.submit(new Callable<Module>() {
+                @Override
+                public Module call() {
+                    return new Module(mCtx, moduleFile);
+                }
+            }));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                Module mod = futures.get(i).get();
+                File moduleFile = parsedFiles.get(i);
+                ModuleIndex.Entry entry = mod.getIndexEntry(moduleFile);
+                index.put(entry);
+                Tracked current = tracked.get(moduleFile.getName());
+                if(current != null && current.id == entry.id) {
+                    current.module.update(moduleFile, entry);
+                    mod = current.module;
+                }
+                track(moduleFile, mod, delta);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+
+        Iterator<String> it = tracked.keySet().iterator();
+        while(it.hasNext()) {
+            if(!fileNames.contains(it.next())) {
+                it.remove();
+                delta.removed++;
+            }
+        }
+        index.retain(fileNames);
+        saveIndex();
+
+        Log.d("DEBUG", "ModuleCatalog: scanned " + moduleFileList.length + " module files, parsed " + futures.size()
+                + ", " + delta);
+        return delta;
+    }
+
+    /**
+     * Add or update a Module that was just written to its module file, without parsing it again.
+     * @param mod The Module
+     * @param moduleFile The file it was written to
+     * @return What changed.
+     */
+    public synchronized Delta put(Module mod, File moduleFile) {
+        Delta delta = new Delta();
+        ModuleIndex.Entry entry = mod.getIndexEntry(moduleFile);
+        index.put(entry);
+        saveIndex();
+        // A Module that was installed before keeps its instance, with the statistics it has loaded
+        track(moduleFile, getModule(moduleFile, entry), delta);
+        return delta;
+    }
+
+    /**
+     * Remove a Module whose module file was just deleted.
+     * @param moduleFile The deleted module file
+     * @return What changed.
+     */
+    public synchronized Delta remove(File moduleFile) {
+        Delta delta = new Delta();
+        Tracked removed = tracked.remove(moduleFile.getName());
+        if(removed != null) {
+            Log.d("DEBUG", "ModuleCatalog: removed module " + removed.id);
+            delta.removed++;
+        }
+        index.remove(moduleFile.getName());
+        saveIndex();
+        return delta;
+    }
+
+    /**
+     * @return A new list of all installed Modules, sorted.
+     */
+    public synchronized List<Module> getModules() {
+        List<Module> moduleList = new ArrayList<>(tracked.size());
+        for(Tracked t : tracked.values())
+            moduleList.add(t.module);
+        Collections.sort(moduleList);
+        return moduleList;
+    }
+
+    /**
+     * @return The tracked Module of moduleFile updated with entry, or a new Module if it has none with the same id.
+     */
+    private Module getModule(File moduleFile, ModuleIndex.Entry entry) {
+        Tracked current = tracked.get(moduleFile.getName());
+        if(current != null && current.id == entry.id) {
+            current.module.update(moduleFile, entry);
+            return current.module;
+        }
+        return new Module(mCtx, moduleFile, entry);
+    }
+
+    private void track(File moduleFile, Module mod, Delta delta) {
+        Tracked previous = tracked.put(moduleFile.getName(), new Tracked(moduleFile, mod));
+        if(previous == null)
+            delta.added++;
+        else
+            delta.updated++;
+    }
+
+    private void saveIndex() {
+        try {
+            index.save();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
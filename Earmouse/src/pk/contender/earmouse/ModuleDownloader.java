@@ -0,0 +1,231 @@
+package pk.contender.earmouse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads and installs a batch of Modules from the module server, a few at a time.
+ * <p>
+ * At most {@link #parallelism} downloads run at once, so a batch takes about as long as its slowest items instead
+ * of the sum of all of them. Connections are made with HttpURLConnection, which keeps them alive and reuses them
+ * for the next download from the same server as long as every response is read to the end and closed, which is
+ * why nothing here calls disconnect().
+ * <p>
+ * Every item is downloaded and installed on its own, a failing item does not stop the others. The
+ * {@link Listener} hears about every item as it finishes and about the whole batch at the end.
+ * <p>
+ * Has no Android dependencies, so it can be tested on a desktop JVM against a local server.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class ModuleDownloader {
+
+    /** The amount of downloads that run at once by default */
+    public static final int DEFAULT_PARALLELISM = 4;
+    private static final int CONNECT_TIMEOUT_MILLIS = 15000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+    /** The time after which idle download threads stop */
+    private static final int IDLE_TIMEOUT_SECONDS = 30;
+
+    /**
+     * Installs a downloaded Module, called on a download thread.
+     */
+    public interface Installer {
+        /**
+         * @param moduleId The id of the Module that was requested
+         * @param in The body of the response, closed by the caller
+         * @throws IOException if the Module could not be read or installed
+         */
+        public void install(int moduleId, InputStream in) throws IOException;
+    }
+
+    /**
+     * Receives the results of a batch, see {@link #downloadAll(java.util.List, Installer, Listener)}.
+     */
+    public interface Listener {
+        /**
+         * Called when an item finished, successfully or not.
+         * @param result The result of the item
+         * @param finished The amount of items that finished so far, including this one
+         * @param total The amount of items in the batch
+         */
+        public void onItemFinished(Result result, int finished, int total);
+
+        /**
+         * Called when all items finished.
+         * @param results The results of all items, in the order they were requested
+         */
+        public void onAllFinished(List<Result> results);
+    }
+
+    /**
+     * The outcome of downloading and installing a single Module.
+     */
+    public static class Result {
+        /** The id of the requested Module */
+        public final int moduleId;
+        /** Why it failed, null if it succeeded */
+        public final Exception error;
+        /** The time in milliseconds the download and installation took */
+        public final long millis;
+
+        Result(int moduleId, Exception error, long millis) {
+            this.moduleId = moduleId;
+            this.error = error;
+            this.millis = millis;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+    }
+
+    private final String baseUrl;
+    private final String userAgent;
+    private final int parallelism;
+    /** Runs the {@link Listener} callbacks */
+    private final Executor callbackExecutor;
+    private ExecutorService executor = null;
+
+    /**
+     * @param baseUrl The URL the module files are found under, ending in a slash
+     * @param userAgent The User-Agent sent with every request
+     * @param parallelism The maximum amount of downloads that run at once
+     * @param callbackExecutor Runs the {@link Listener} callbacks, e.g. on the UI thread
+     */
+    public ModuleDownloader(String baseUrl, String userAgent, int parallelism, Executor callbackExecutor) {
+        this.baseUrl = baseUrl;
+        this.userAgent = userAgent;
+        this.parallelism = Math.max(1, parallelism);
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Download and install the given Modules in the background, at most {@link #parallelism} at a time.
+     * @param moduleIds The ids of the Modules
+     * @param installer Installs every downloaded Module
+     * @param listener Receives the results
+     */
+    public synchronized void downloadAll(final List<Integer> moduleIds, final Installer installer, final Listener listener) {
+        if(executor == null) {
+            // The threads stop when idle, so a batch keeps going when the user leaves and nothing needs shutting down
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(parallelism, parallelism, IDLE_TIMEOUT_SECONDS,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+
+        final int total = moduleIds.size();
+        final Result [] results = new Result[total];
+        final AtomicInteger finished = new AtomicInteger(0);
+        if(total == 0) {
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onAllFinished(Collections.<Result>emptyList());
+                }
+            });
+            return;
+        }
+
+        for(int i = 0; i < total; i++) {
+            final int position = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final Result result = download(moduleIds.get(position), installer);
+                    results[position] = result;
+                    final int done = finished.incrementAndGet();
+                    callbackExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onItemFinished(result, done, total);
+                        }
+                    });
+                    if(done == total) {
+                        final List<Result> resultList = new ArrayList<>(total);
+                        // The increments of finished order the writes to results before this read
+                        Collections.addAll(resultList, results);
+                        callbackExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onAllFinished(resultList);
+                            }
+                        });
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Download and install a single Module on the calling thread.
+     * @param moduleId The id of the Module
+     * @param installer Installs the downloaded Module
+     * @return The result.
+     */
+    public Result download(int moduleId, Installer installer) {
+        long start = System.nanoTime();
+        Exception error = null;
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(baseUrl + "module_" + moduleId + ".json").openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            connection.setRequestProperty("User-Agent", userAgent);
+
+            int responseCode = connection.getResponseCode();
+            if(responseCode != HttpURLConnection.HTTP_OK)
+                throw new IOException("HTTP " + responseCode + " for module " + moduleId);
+
+            InputStream in = connection.getInputStream();
+            try {
+                installer.install(moduleId, in);
+                drain(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Reported through the Result, the batch goes on
+            error = e;
+            if(connection != null)
+                closeErrorStream(connection);
+        }
+        return new Result(moduleId, error, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Read the rest of a response, so its connection can be reused.
+     */
+    private static void drain(InputStream in) throws IOException {
+        byte [] buffer = new byte[1024];
+        //noinspection StatementWithEmptyBody
+        while(in.read(buffer) != -1);
+    }
+
+    /**
+     * Read and close the error response of a failed request, if any, so its connection can be reused.
+     */
+    private static void closeErrorStream(HttpURLConnection connection) {
+        InputStream err = connection.getErrorStream();
+        if(err == null)
+            return;
+        try {
+            drain(err);
+            err.close();
+        } catch (IOException ignored) {
+            // The connection is not reused then
+        }
+    }
+}
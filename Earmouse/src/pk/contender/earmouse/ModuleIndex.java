@@ -0,0 +1,238 @@
+package pk.contender.earmouse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persisted index of the installed Modules, holding everything the list of Modules shows so that showing
+ * it does not require parsing the exercises and answers of every Module.
+ * <p>
+ * Every entry records the length and modification time of the module file it was made from. An entry that
+ * does not match its file any more is out of date and replaced by parsing that one file again, entries of
+ * files that were deleted are dropped, so installing or deleting a Module only costs that Module.
+ * <p>
+ * All methods are thread-safe.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class ModuleIndex {
+
+    /** The name of the index file, in the same directory as the module files */
+    public static final String INDEX_FILENAME = "catalog.idx";
+
+    /** "EMCI", Earmouse catalog index */
+    private static final int MAGIC = 0x454d4349;
+    private static final short VERSION = 1;
+
+    /**
+     * The metadata of a single Module, see the fields of {@link pk.contender.earmouse.Module}.
+     */
+    public static class Entry {
+        /** The name of the module file this entry was made from */
+        public final String fileName;
+        /** The length in bytes of the module file this entry was made from */
+        public final long fileLength;
+        /** The modification time of the module file this entry was made from */
+        public final long lastModified;
+
+        public final int id;
+        public final String title;
+        public final String description;
+        public final String shortDescription;
+        public final int lowestNote, highestNote;
+        public final int difficulty;
+        public final String toolVersion;
+        public final int moduleVersion;
+        public final int noteDuration, noteRelease;
+
+        public Entry(File moduleFile, int id, String title, String description, String shortDescription,
+                     int lowestNote, int highestNote, int difficulty, String toolVersion, int moduleVersion,
+                     int noteDuration, int noteRelease) {
+            this(moduleFile.getName(), moduleFile.length(), moduleFile.lastModified(), id, title, description,
+                    shortDescription, lowestNote, highestNote, difficulty, toolVersion, moduleVersion,
+                    noteDuration, noteRelease);
+        }
+
+        private Entry(String fileName, long fileLength, long lastModified, int id, String title,
+                      String description, String shortDescription, int lowestNote, int highestNote,
+                      int difficulty, String toolVersion, int moduleVersion, int noteDuration, int noteRelease) {
+            this.fileName = fileName;
+            this.fileLength = fileLength;
+            this.lastModified = lastModified;
+            this.id = id;
+            this.title = title;
+            this.description = description;
+            this.shortDescription = shortDescription;
+            this.lowestNote = lowestNote;
+            this.highestNote = highestNote;
+            this.difficulty = difficulty;
+            this.toolVersion = toolVersion;
+            this.moduleVersion = moduleVersion;
+            this.noteDuration = noteDuration;
+            this.noteRelease = noteRelease;
+        }
+
+        /**
+         * @param moduleFile A module file
+         * @return True if this entry was made from the given file as it is now.
+         */
+        public boolean matches(File moduleFile) {
+            return fileName.equals(moduleFile.getName()) && fileLength == moduleFile.length()
+                    && lastModified == moduleFile.lastModified();
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(fileName);
+            out.writeLong(fileLength);
+            out.writeLong(lastModified);
+            out.writeInt(id);
+            writeString(out, title);
+            writeString(out, description);
+            writeString(out, shortDescription);
+            out.writeInt(lowestNote);
+            out.writeInt(highestNote);
+            out.writeInt(difficulty);
+            writeString(out, toolVersion);
+            out.writeInt(moduleVersion);
+            out.writeInt(noteDuration);
+            out.writeInt(noteRelease);
+        }
+
+        static Entry read(DataInputStream in) throws IOException {
+            return new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readInt(), readString(in),
+                    readString(in), readString(in), in.readInt(), in.readInt(), in.readInt(), readString(in),
+                    in.readInt(), in.readInt(), in.readInt());
+        }
+    }
+
+    private final File indexFile;
+    /** The entries by file name */
+    private final Map<String, Entry> entries = new HashMap<>();
+    /** True if the entries changed since the index was read or written */
+    private boolean changed = false;
+
+    /**
+     * Read the index from the given file. If it does not exist or can not be read, the index starts out empty.
+     * @param indexFile The index file, need not exist yet
+     */
+    public ModuleIndex(File indexFile) {
+        this.indexFile = indexFile;
+        if(!indexFile.exists())
+            return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if(in.readInt() != MAGIC || in.readShort() != VERSION) {
+                changed = true;
+                return;
+            }
+            int count = in.readInt();
+            for(int i = 0; i < count; i++) {
+                Entry entry = Entry.read(in);
+                entries.put(entry.fileName, entry);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            entries.clear();
+            changed = true;
+        } finally {
+            if(in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param moduleFile A module file
+     * @return The entry for the given module file, or null if there is none or it is out of date.
+     */
+    public synchronized Entry get(File moduleFile) {
+        Entry entry = entries.get(moduleFile.getName());
+        if(entry == null || !entry.matches(moduleFile))
+            return null;
+        return entry;
+    }
+
+    /**
+     * Add an entry, replacing the entry for the same file if there is one.
+     * @param entry The entry
+     */
+    public synchronized void put(Entry entry) {
+        entries.put(entry.fileName, entry);
+        changed = true;
+    }
+
+    /**
+     * Drop the entry for the given module file, if there is one.
+     * @param fileName The name of the module file
+     */
+    public synchronized void remove(String fileName) {
+        if(entries.remove(fileName) != null)
+            changed = true;
+    }
+
+    /**
+     * Drop the entries of all module files not in the given set, i.e. the Modules that were deleted.
+     * @param fileNames The names of the module files that are installed
+     */
+    public synchronized void retain(Set<String> fileNames) {
+        Iterator<String> it = entries.keySet().iterator();
+        while(it.hasNext()) {
+            if(!fileNames.contains(it.next())) {
+                it.remove();
+                changed = true;
+            }
+        }
+    }
+
+    /**
+     * Write the index to its file if it changed, through a temporary file so the file is never left half written.
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        if(!changed)
+            return;
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(entries.size());
+            for(Entry entry : new ArrayList<>(entries.values()))
+                entry.write(out);
+        } finally {
+            out.close();
+        }
+        if(!tempFile.renameTo(indexFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw new IOException("Could not replace " + indexFile.getName());
+        }
+        changed = false;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if(s != null)
+            out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -6,6 +6,7 @@ import android.os.Bundle;
 import android.view.View;
 import android.widget.ListView;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -17,6 +18,32 @@ public class ModuleListFragment extends ListFragment {
 
 	private OnModuleSelectedListener moduleSelectedListener;
 
+	/**
+	 * Sets up the list adapter once the Modules have been loaded in the background, and updates its
+	 * contents when Modules are installed or deleted.
+	 */
+	private final Main.OnModuleListLoadedListener moduleListLoadedListener = new Main.OnModuleListLoadedListener() {
+		@Override
+		public void onModuleListLoaded(List<Module> moduleList) {
+			if(getActivity() == null)
+				return;
+			ModuleListAdapter adapter = (ModuleListAdapter) getListAdapter();
+			if(adapter == null) {
+				setListAdapter(new ModuleListAdapter(getActivity(), moduleList, ModuleListAdapter.TARGET_MAINACTIVITY));
+				if(getView() != null)
+					setListShown(true);
+			} else {
+				// Update the contents in place, keeping the scroll position, and notify the ListView once.
+				// The adapter may be backed by moduleList itself, so copy it before clearing.
+				List<Module> contents = new ArrayList<>(moduleList);
+				adapter.setNotifyOnChange(false);
+				adapter.clear();
+				adapter.addAll(contents);
+				adapter.notifyDataSetChanged();
+			}
+		}
+	};
+
 	/**
 	 * Listener interface for ListView clicks, any activity that attaches this Fragment must implement this.
 	 */
@@ -32,7 +59,8 @@ public class ModuleListFragment extends ListFragment {
 
 	/**
 	 * Checks whether attaching Activity implements the OnModuleSelectedListener interface
-     * and sets up the list adapter.
+     * and sets up the list adapter, if the Modules are still being loaded that is done in
+     * {@link #moduleListLoadedListener}.
 	 */
 	@Override
 	public void onAttach(Activity activity) {
@@ -44,14 +72,26 @@ public class ModuleListFragment extends ListFragment {
 					+ " must implement ModuleListFragment.OnModuleSelectedListener");
 		}
 
+        Main.addOnModuleListLoadedListener(moduleListLoadedListener);
         List<Module> moduleList = Main.getModuleList();
-        ModuleListAdapter arrayAdap = new ModuleListAdapter(getActivity(), moduleList, ModuleListAdapter.TARGET_MAINACTIVITY);
-        setListAdapter(arrayAdap);
+        if(moduleList != null) {
+            ModuleListAdapter arrayAdap = new ModuleListAdapter(getActivity(), moduleList, ModuleListAdapter.TARGET_MAINACTIVITY);
+            setListAdapter(arrayAdap);
+        }
 	}
 
 	@Override
 	public void onActivityCreated(Bundle savedInstanceState) {
         setEmptyText(this.getString(R.string.list_no_modules_installed));
 		super.onActivityCreated(savedInstanceState);
+        // Show the progress indicator until the Modules are loaded
+        if(getListAdapter() == null)
+            setListShown(false);
+	}
+
+	@Override
+	public void onDetach() {
+		Main.removeOnModuleListLoadedListener(moduleListLoadedListener);
+		super.onDetach();
 	}
 }
@@ -1,5 +1,6 @@
 package pk.contender.earmouse;
 
+import android.app.ActionBar;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
@@ -8,6 +9,8 @@ import android.content.res.Resources;
 import android.net.http.AndroidHttpClient;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.JsonReader;
 import android.util.Log;
 import android.view.ActionMode;
@@ -26,10 +29,13 @@ import org.apache.http.HttpResponse;
 import org.apache.http.message.BasicHttpRequest;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Activity for displaying a list of Modules available for remote installation and installing these modules either one by one or in a batch.
@@ -58,6 +64,33 @@ public class ModuleManagerActivity extends Activity implements ManagerListFragme
 
     /** List of currently shown Modules in the ListView,  */
     public static final List<Module> shownModuleList = new ArrayList<>();
+    /** Runs the callbacks of {@link #mDownloader} on the UI thread */
+    private static final Executor UI_THREAD_EXECUTOR = new Executor() {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    };
+    /** The modules fetched from the server while the installed Modules were still being loaded, null if none */
+    private List<Module> fetchedModuleList = null;
+    /** Shows {@link #fetchedModuleList} once the installed Modules are loaded */
+    private final Main.OnModuleListLoadedListener moduleListLoadedListener = new Main.OnModuleListLoadedListener() {
+        @Override
+        public void onModuleListLoaded(List<Module> moduleList) {
+            Main.removeOnModuleListLoadedListener(this);
+            if(fetchedModuleList == null)
+                return;
+            List<Module> fetched = fetchedModuleList;
+            fetchedModuleList = null;
+            showAvailableModules(fetched, moduleList);
+        }
+    };
+    /** Downloads the modules the user selected for installation */
+    private final ModuleDownloader mDownloader = new ModuleDownloader(
+            "http://" + Main.SERVER_HOST + ":" + Main.SERVER_PORT + Main.SERVER_PATH, "Earmouse/" + Main.VERSION,
+            ModuleDownloader.DEFAULT_PARALLELISM, UI_THREAD_EXECUTOR);
 
     /**
      * Loads saved state and preferences and sets up the context actionbar (CAB).
@@ -106,7 +139,7 @@ public class ModuleManagerActivity extends Activity implements ManagerListFragme
                     // Respond to clicks on the actions in the CAB
                     switch (item.getItemId()) {
                         case R.id.manager_ctx_install:
-                            new fetchAndInstallSelection().execute();
+                            installSelection();
                             mode.finish(); // Action picked, so close the CAB
                             return true;
                         default:
@@ -171,6 +204,39 @@ public class ModuleManagerActivity extends Activity implements ManagerListFragme
         settings.edit().putInt(PREFERENCES_MODULEMANAGERACTIVITY_SELECTIONPOSITION, selectionPosition).apply();
     }
 
+    @Override
+    protected void onDestroy() {
+        Main.removeOnModuleListLoadedListener(moduleListLoadedListener);
+        super.onDestroy();
+    }
+
+    /**
+     * Show the given modules from the server in the ListView, minus the ones that are already installed or shown.
+     * @param available The modules available on the server
+     * @param installed The installed Modules
+     */
+    private void showAvailableModules(List<Module> available, List<Module> installed) {
+        List<Integer> idsToRemove = new ArrayList<>();
+
+        for(Module mod : installed)
+            idsToRemove.add(mod.getId());
+        for(Module mod : shownModuleList)
+            idsToRemove.add(mod.getId());
+        // idsToRemove now contains all the Module IDS that are either are already installed or
+        // already shown in the list so need not be added.
+        for(Module mod : available)
+            if(!idsToRemove.contains(mod.getId()))
+                shownModuleList.add(mod);
+
+        Collections.sort(shownModuleList);
+
+        ManagerListFragment managerListFragment = (ManagerListFragment) getFragmentManager().findFragmentById(R.id.fragmentModuleList);
+        if(managerListFragment != null){
+            managerListFragment.setListShown(true);
+        }
+        mAdapter.notifyDataSetChanged();
+    }
+
     @Override
     protected void onSaveInstanceState(@SuppressWarnings("NullableProblems") Bundle outState) {
 
@@ -227,120 +293,124 @@ public class ModuleManagerActivity extends Activity implements ManagerListFragme
     }
 
     /**
-     * Downloads and installs all the modules in {@link #selection}
+     * Downloads and installs all the modules in {@link #selection}, several at a time.
+     * <p>
+     * Every module that is installed is removed from the ListView straight away and the ActionBar shows the
+     * progress, the user is told how many modules were installed when all are done.
      */
-    private class fetchAndInstallSelection extends AsyncTask<Void, Void, Integer> {
+    private void installSelection() {
+        List<Integer> moduleIds = new ArrayList<>(selection.size());
+        for(Module mod : selection) {
+            if(mod != null)
+                moduleIds.add(mod.getId());
+        }
 
-        private AndroidHttpClient httpClient = null;
-        private Context mCtx;
-        private List<Module> removals;
+        // The list of installed modules is updated as each module is installed, the ListViews once at the end
+        Main.beginModuleListBatch();
+        mDownloader.downloadAll(moduleIds, new ModuleInstaller(getApplicationContext()), new InstallListener(this));
+    }
 
-        @Override
-        protected Integer doInBackground(Void... params) {
+    /**
+     * Parses a downloaded Module and writes it to local storage.
+     */
+    private static class ModuleInstaller implements ModuleDownloader.Installer {
 
-            httpClient = AndroidHttpClient.newInstance("Earmouse/" + Main.VERSION);
-            HttpHost host = new HttpHost(Main.SERVER_HOST, Main.SERVER_PORT);
-            Integer installed = 0;
+        private final Context mCtx;
 
-            for(Module mod : selection) {
-                if(mod == null)
-                    continue;
+        ModuleInstaller(Context context) {
+            mCtx = context;
+        }
 
-                BasicHttpRequest request = new BasicHttpRequest("GET", Main.SERVER_PATH + "module_" + mod.getId() + ".json");
+        @Override
+        public void install(int moduleId, InputStream in) throws IOException {
+            Module mod = new Module(mCtx, new InputStreamReader(in, "UTF-8"));
+            // The Module constructor does not report errors, an incomplete Module has no id or title
+            if(mod.getId() != moduleId || mod.getTitle() == null)
+                throw new IOException("Received an invalid module for id " + moduleId);
+            if(!mod.writeModuleToJson())
+                throw new IOException("Could not write module " + moduleId);
+        }
+    }
 
-                HttpResponse response;
-                try {
-                    response = httpClient.execute(host, request);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    cancel(false);
-                    return installed;
-                }
+    /**
+     * Shows the progress of an installation started by {@link #installSelection()}.
+     * <p>
+     * The downloads go on when the user leaves the Activity, so it is only held weakly and left alone once it is
+     * finishing, the batch of the module list is always ended and the outcome always reported.
+     */
+    private static class InstallListener implements ModuleDownloader.Listener {
 
-                HttpEntity entity;
-                if(response != null) {
-                    entity = response.getEntity();
-                } else {
-                    cancel(false);
-                    return installed;
-                }
-                if(entity != null) {
-                    Log.d("DEBUG", "entity.getContentLength() returns " + entity.getContentLength());
-                } else {
-                    cancel(false);
-                    return installed;
-                }
+        private final WeakReference<ModuleManagerActivity> mActivity;
+        private final Context mCtx;
 
-                InputStreamReader reader;
-                try {
-                    reader = new InputStreamReader(entity.getContent());
-                } catch (IllegalStateException | IOException e) {
-                    e.printStackTrace();
-                    cancel(false);
-                    return installed;
-                }
+        InstallListener(ModuleManagerActivity activity) {
+            mActivity = new WeakReference<>(activity);
+            mCtx = activity.getApplicationContext();
+        }
 
-                Module result = new Module(mCtx, reader);
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    cancel(false);
-                    return installed;
-                }
+        /**
+         * @return The Activity, or null if it is gone or finishing.
+         */
+        private ModuleManagerActivity getActivity() {
+            ModuleManagerActivity activity = mActivity.get();
+            return activity == null || activity.isFinishing() ? null : activity;
+        }
 
-                // TODO: If an error occurred during the read, this module should not be written to disk ...
-                if(result.writeModuleToJson()) {
-                    installed++;
-                    for (Module listMod : shownModuleList) {
-                        if (listMod.getId() == mod.getId()) {
-                            // We want to remove the items from the adapter straight away but have to do this on the UI thread.
-                            removals.add(listMod);
-                            break;
-                        }
+        @Override
+        public void onItemFinished(ModuleDownloader.Result result, int finished, int total) {
+            ModuleManagerActivity activity = getActivity();
+            if(activity == null)
+                return;
+            if(result.isSuccess() && mAdapter != null) {
+                for (Module listMod : shownModuleList) {
+                    if (listMod.getId() == result.moduleId) {
+                        mAdapter.remove(listMod);
+                        break;
                     }
                 }
             }
-            return installed;
+            ActionBar actionBar = activity.getActionBar();
+            if(actionBar != null)
+                actionBar.setSubtitle(activity.getString(R.string.manager_installing_progress, finished, total));
         }
 
         @Override
-        protected void onPreExecute() {
-
-            mCtx = getApplicationContext();
-            removals = new ArrayList<>(selection.size());
-        }
-
-        @Override
-        protected void onPostExecute(Integer installed) {
-            if(httpClient != null)
-                httpClient.close();
+        public void onAllFinished(List<ModuleDownloader.Result> results) {
+            Main.endModuleListBatch();
 
-            // update ListView
-            for(Module mod : removals)
-                mAdapter.remove(mod);
-
-            // FIXME: Returning to main before installation is completed will not update ListView in Main with new modules.
+            int installed = 0;
+            for(ModuleDownloader.Result result : results) {
+                if(result.isSuccess())
+                    installed++;
+                else
+                    Log.d("DEBUG", "Could not install module " + result.moduleId + ": " + result.error);
+            }
+            // Toasts are shown through the application context, the user hears about the outcome either way
+            if(installed < results.size()) {
+                Toast toast = Toast.makeText(mCtx, mCtx.getString(R.string.toast_error_installing_module), Toast.LENGTH_LONG);
+                toast.show();
+            }
 
             // Inform user of amount of successfully installed modules
             Resources res = mCtx.getResources();
-            String s = installed + " " + res.getQuantityString(R.plurals.plural_module, installed) + " " + getString(R.string.cab_installed);
+            String s = installed + " " + res.getQuantityString(R.plurals.plural_module, installed) + " " + mCtx.getString(R.string.cab_installed);
             Toast toast = Toast.makeText(mCtx, s, Toast.LENGTH_LONG);
             toast.show();
 
+            ModuleManagerActivity activity = getActivity();
+            if(activity == null)
+                return;
+            ActionBar actionBar = activity.getActionBar();
+            if(actionBar != null)
+                actionBar.setSubtitle(null);
+
             // update detailfragment
-            ManagerDetailsFragment detailFragment = (ManagerDetailsFragment) getFragmentManager().findFragmentById(R.id.fragmentDetailManager);
+            ManagerDetailsFragment detailFragment = (ManagerDetailsFragment) activity.getFragmentManager().findFragmentById(R.id.fragmentDetailManager);
             if(detailFragment != null && detailFragment.isInLayout()) {
                 detailFragment.setId(-1); // this will set detailfragment to empty view
                 detailFragment.update();
             }
         }
-
-        @Override
-        protected void onCancelled(Integer integer) {
-            Toast toast = Toast.makeText(mCtx, mCtx.getString(R.string.toast_error_installing_module), Toast.LENGTH_LONG);
-            toast.show();
-        }
     }
 
     /**
@@ -370,25 +440,15 @@ public class ModuleManagerActivity extends Activity implements ManagerListFragme
                 return;
             }
 
-            List<Integer> idsToRemove = new ArrayList<>();
-
-            for(Module mod : Main.getModuleList())
-                idsToRemove.add(mod.getId());
-            for(Module mod : shownModuleList)
-                idsToRemove.add(mod.getId());
-            // idsToRemove now contains all the Module IDS that are either are already installed or
-            // already shown in the list so need not be added.
-            for(Module mod : result)
-                if(!idsToRemove.contains(mod.getId()))
-                    shownModuleList.add(mod);
-
-            Collections.sort(shownModuleList);
-
-            ManagerListFragment managerListFragment = (ManagerListFragment) getFragmentManager().findFragmentById(R.id.fragmentModuleList);
-            if(managerListFragment != null){
-                managerListFragment.setListShown(true);
+            List<Module> installed = Main.getModuleList();
+            if(installed == null) {
+                // The list keeps showing its progress indicator until the installed Modules are loaded
+                fetchedModuleList = result;
+                Main.addOnModuleListLoadedListener(moduleListLoadedListener);
+                Main.refreshModuleListAsync(mCtx);
+                return;
             }
-            mAdapter.notifyDataSetChanged();
+            showAvailableModules(result, installed);
         }
 
         @Override
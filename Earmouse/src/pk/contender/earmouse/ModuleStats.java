@@ -2,29 +2,52 @@ package pk.contender.earmouse;
 
 import android.content.Context;
 import android.util.JsonReader;
-import android.util.JsonWriter;
+import android.util.Log;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Keeps track of all the answers a user has given to exercises of a specific Module.
  * <p>Provides methods for entering answers and obtaining useful information about this data and
  * for reading and writing recorded statistical data to local storage.
+ * <p>The answers are stored in an {@link pk.contender.earmouse.AnswerLog}, saving only appends the answers
+ * that were added since the last save. Statistics in the JSON format of earlier versions are migrated
+ * to the log the first time they are loaded.
+ * <p>Answers are added and queried on the UI thread and saved in the background by the
+ * {@link pk.contender.earmouse.StatsPersister}, only the storage access holds up a save.
+ * <p>Every save also updates a {@link pk.contender.earmouse.StatsSummary} of the totals, which lets the list
+ * of Modules show statistics without constructing a ModuleStats, see {@link #readSummary(Context, int)}.
+ * <p>The answer counts per exercise and for the whole Module are kept up to date as answers are added, so
+ * querying them does not depend on the size of the history.
  *
  * @author Paul Klinkenberg <pklinken.development@gmail.com>
  */
 public class ModuleStats {
 
     /** All the recorded answers */
-    private List<ModuleAnswer> moduleAnswerList;
+    private AnswerStore moduleAnswerList;
+    /** The amount of answers per exercise index, grows as needed */
+    private int [] exerciseAttempts = new int[0];
+    /** The amount of correct answers per exercise index, same length as {@link #exerciseAttempts} */
+    private int [] exerciseCorrect = new int[0];
+    /** The amount of answers in {@link #moduleAnswerList} */
+    private int totalAttempts = 0;
+    /** The amount of correct answers in {@link #moduleAnswerList} */
+    private int totalCorrect = 0;
+    /** The time of the latest answer in {@link #moduleAnswerList}, 0 if none */
+    private long lastPracticed = 0;
+    /** The amount of answers at the start of {@link #moduleAnswerList} that are stored in {@link #answerLog} */
+    private int savedAnswers = 0;
     /** Reference to local storage */
+    private final AnswerLog answerLog;
+    /** Reference to the statistics of earlier versions, only read for migrating them to {@link #answerLog} */
 	private final File statsFile;
+	/** Reference to the summary of the totals, see {@link #writeSummary()} */
+	private final File summaryFile;
 
 	/**
 	 * Construct an instance to be associated with the given Module {@link Module#id}, attempts to load from local storage if the file
@@ -33,12 +56,49 @@ public class ModuleStats {
 	 * @param id the ID of the Module this instance will be associated with
 	 */
 	public ModuleStats(Context context, int id) {
+		this(context.getDir("files", Context.MODE_PRIVATE), id);
+	}
 
-        moduleAnswerList = new ArrayList<>();
-		File currentDir = context.getDir("files", Context.MODE_PRIVATE);
-		statsFile = new File(currentDir, "stats_" + id + ".json");
-		
-		if (statsFile.exists()) {
+	/**
+	 * Construct an instance that keeps its files in the given directory, without a Context so that it can be
+	 * used on a desktop JVM, see {@link #ModuleStats(Context, int)}.
+	 * @param currentDir The directory holding the statistics
+	 * @param id the ID of the Module this instance will be associated with
+	 */
+	ModuleStats(File currentDir, int id) {
+
+        moduleAnswerList = new AnswerStore();
+		answerLog = new AnswerLog(getLogFile(currentDir, id));
+		statsFile = getJsonFile(currentDir, id);
+		summaryFile = getSummaryFile(currentDir, id);
+
+		if (answerLog.exists()) {
+			try {
+				boolean intact = answerLog.read(new AnswerStore.Visitor() {
+					@Override
+					public void onAnswer(int exerciseIndex, boolean result, long timestamp) {
+						moduleAnswerList.add(exerciseIndex, result, timestamp);
+						countAnswer(exerciseIndex, result, timestamp);
+					}
+				});
+				if(!intact) {
+					Log.d("DEBUG", "ModuleStats: compacting damaged answer log of module " + id);
+					answerLog.rewrite(moduleAnswerList);
+				}
+			} catch (AnswerLog.UnknownFormatException e) {
+				// Nothing was read, keep the log for a version that can read it and start a new one
+				e.printStackTrace();
+				if(!answerLog.moveAside())
+					Log.d("DEBUG", "ModuleStats: could not move aside the answer log of module " + id);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			savedAnswers = moduleAnswerList.size();
+			// Bring the summary up to date if the last save did not get to it
+			StatsSummary summary = StatsSummary.read(summaryFile);
+			if(summary == null || summary.logLength != answerLog.length() || summary.answerCount != totalAttempts)
+				writeSummary();
+		} else if (statsFile.exists()) {
 			FileReader fr = null;
 			try {
 				fr = new FileReader(statsFile);
@@ -49,6 +109,7 @@ public class ModuleStats {
 				try {
 					initModuleStatsFromJson(fr);
 					fr.close();
+					migrateToAnswerLog();
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
@@ -56,6 +117,64 @@ public class ModuleStats {
 		}
 	}
 
+	private static File getLogFile(File dir, int id) {
+		return new File(dir, "stats_" + id + ".log");
+	}
+
+	private static File getJsonFile(File dir, int id) {
+		return new File(dir, "stats_" + id + ".json");
+	}
+
+	private static File getSummaryFile(File dir, int id) {
+		return new File(dir, "stats_" + id + ".summary");
+	}
+
+	/**
+	 * Read the summary of the statistics of the given Module, without loading its answers.
+	 * @param context The application context, used for file operations
+	 * @param id the ID of the Module
+	 * @return The summary, or null if there is no up to date summary and the statistics have to be loaded
+	 * (which brings the summary up to date).
+	 */
+	public static StatsSummary readSummary(Context context, int id) {
+		File currentDir = context.getDir("files", Context.MODE_PRIVATE);
+		File logFile = getLogFile(currentDir, id);
+		if(!logFile.exists())
+			return getJsonFile(currentDir, id).exists() ? null : StatsSummary.EMPTY;
+		StatsSummary summary = StatsSummary.read(getSummaryFile(currentDir, id));
+		if(summary == null || summary.logLength != logFile.length())
+			return null;
+		return summary;
+	}
+
+	/**
+	 * Write the summary of all answers, which must all be saved.
+	 */
+	private void writeSummary() {
+		StatsSummary summary;
+		synchronized (this) {
+			summary = new StatsSummary(totalAttempts, totalCorrect, lastPracticed, answerLog.length());
+		}
+		try {
+			summary.write(summaryFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Write the answers read from {@link #statsFile} to {@link #answerLog} and delete statsFile once the
+	 * log is complete.
+	 * @throws IOException
+	 */
+	private void migrateToAnswerLog() throws IOException {
+		answerLog.rewrite(moduleAnswerList);
+		savedAnswers = moduleAnswerList.size();
+		writeSummary();
+		if(!statsFile.delete())
+			Log.d("DEBUG", "ModuleStats: could not delete " + statsFile.getName() + " after migrating it");
+	}
+
 	/**
 	 * Reads an existing ModuleStats instance from a JSON file
 	 * @param fr The FileReader to read from
@@ -88,7 +207,8 @@ public class ModuleStats {
                         break;
                 }
 			}
-			moduleAnswerList.add(new ModuleAnswer(exerciseIndex, result, timestamp));
+			moduleAnswerList.add(exerciseIndex, result, timestamp);
+			countAnswer(exerciseIndex, result, timestamp);
 			reader.endObject();
 
 		} 
@@ -97,54 +217,62 @@ public class ModuleStats {
 	}
 
 	/**
-	 * Save moduleAnswerList to the given FileWriter as a JSON stream
-	 * @param fw The FileWriter to save to
-	 * @throws IOException
-	 */
-	private void saveModuleStatsToJson(FileWriter fw) throws IOException {
-		JsonWriter writer = new JsonWriter(fw);
-
-		writer.beginArray();
-		for (ModuleAnswer item : moduleAnswerList) {
-			writer.beginObject();
-			writer.name("exerciseIndex");
-			writer.value(item.getExerciseIndex());
-			writer.name("result");
-			writer.value(item.getResult());
-			writer.name("timestamp");
-			writer.value(item.getTimestamp());
-			writer.endObject();
-		}
-		writer.endArray();
-		writer.close();
-	}
-
-	/**
-	 * Save this instance to local storage, if the file doesn't exist, creates it, otherwise overwrites existing data.
+	 * Save this instance to local storage by appending the answers that were added since the last save,
+	 * creates the file if it doesn't exist.
+	 * <p>Called by the {@link pk.contender.earmouse.StatsPersister} in the background, answers can be added
+	 * while the file is being written.
 	 */
 	public void saveModuleStats() {
 
-		if (!statsFile.exists()) {
+		synchronized (answerLog) {
+			AnswerStore unsaved;
+			int saved;
+			StatsSummary summary;
+			synchronized (this) {
+				if(moduleAnswerList == null || savedAnswers >= moduleAnswerList.size())
+					return;
+				saved = moduleAnswerList.size();
+				unsaved = moduleAnswerList.copyRange(savedAnswers, saved);
+				summary = new StatsSummary(totalAttempts, totalCorrect, lastPracticed, 0);
+			}
 			try {
-                //noinspection ResultOfMethodCallIgnored
-                statsFile.createNewFile();
+				try {
+					answerLog.append(unsaved, 0);
+				} catch (AnswerLog.UnknownFormatException e) {
+					// Keep the log for a version that can read it and start a new one with all answers known here
+					e.printStackTrace();
+					if(!answerLog.moveAside()) {
+						Log.d("DEBUG", "ModuleStats: could not move aside an answer log with an unknown header");
+						return;
+					}
+					synchronized (this) {
+						unsaved = moduleAnswerList.copyRange(0, saved);
+					}
+					answerLog.append(unsaved, 0);
+				}
 			} catch (IOException e) {
+				// The answers stay unsaved, the next save tries again
 				e.printStackTrace();
+				return;
+			}
+			synchronized (this) {
+				savedAnswers = saved;
 			}
-		}
-		FileWriter fw = null;
-		try {
-			fw = new FileWriter(statsFile);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		if(fw != null)
 			try {
-				saveModuleStatsToJson(fw);
-				fw.close();
+				new StatsSummary(summary.answerCount, summary.correctCount, summary.lastPracticed, answerLog.length())
+						.write(summaryFile);
 			} catch (IOException e) {
+				// Rewritten from the log when this module is loaded again
 				e.printStackTrace();
 			}
+		}
+	}
+
+	/**
+	 * @return The amount of answers that were added since the last save.
+	 */
+	public synchronized int getUnsavedAnswers() {
+		return moduleAnswerList == null ? 0 : moduleAnswerList.size() - savedAnswers;
 	}
 
 	/**
@@ -152,27 +280,45 @@ public class ModuleStats {
 	 * @param exerciseIndex The index of the exercise the answer refers to
 	 * @param result The correctness of the answer
 	 */
-	public void addAnswer(int exerciseIndex, boolean result) {
-		ModuleAnswer answer = new ModuleAnswer(exerciseIndex, result);
-		moduleAnswerList.add(answer);
+	public synchronized void addAnswer(int exerciseIndex, boolean result) {
+		long timestamp = System.currentTimeMillis();
+		moduleAnswerList.add(exerciseIndex, result, timestamp);
+		countAnswer(exerciseIndex, result, timestamp);
+	}
+
+	/**
+	 * Update the answer counts for a newly added answer.
+	 * @param exerciseIndex The index of the exercise the answer refers to, negative if unknown
+	 * @param result The correctness of the answer
+	 * @param timestamp The time at which the answer was given
+	 */
+	private void countAnswer(int exerciseIndex, boolean result, long timestamp) {
+		totalAttempts++;
+		lastPracticed = Math.max(lastPracticed, timestamp);
+		if(result)
+			totalCorrect++;
+		if(exerciseIndex < 0)
+			return;
+		if(exerciseIndex >= exerciseAttempts.length) {
+			int length = Math.max(exerciseIndex + 1, exerciseAttempts.length * 2);
+			exerciseAttempts = Arrays.copyOf(exerciseAttempts, length);
+			exerciseCorrect = Arrays.copyOf(exerciseCorrect, length);
+		}
+		exerciseAttempts[exerciseIndex]++;
+		if(result)
+			exerciseCorrect[exerciseIndex]++;
 	}
 
 	/**
 	 * Calculates the success rate of the registered answers.
 	 * @return The percentage of registered answers that is correct or -1 if there is no available data.
 	 */
-	public int calculateSuccessRate() {
+	public synchronized int calculateSuccessRate() {
 
-		if(moduleAnswerList.size() == 0)
+		if(totalAttempts == 0)
 			return -1;
-		else {
-			int correctAnswers = 0;
-			for (ModuleAnswer answer : moduleAnswerList) {
-				if (answer.getResult())
-					correctAnswers++;
-			}
-			return (int)(((float)correctAnswers / (float)moduleAnswerList.size()) * 100);
-		}
+		else
+			return (int)(((float)totalCorrect / (float)totalAttempts) * 100);
 	}
 	
 	/**
@@ -183,14 +329,8 @@ public class ModuleStats {
 	 * is the same as the number of correct answers given.
 	 * @return the number of exercises in this module that were answered correctly.
 	 */
-	public int exercisesCompleted() {
-		int result = 0;
-		
-		for (ModuleAnswer answer: moduleAnswerList) {
-			if(answer.getResult())
-				result++;
-		}
-		return result;
+	public synchronized int exercisesCompleted() {
+		return totalCorrect;
 	}
 
     /**
@@ -198,18 +338,9 @@ public class ModuleStats {
      * @param exerciseIndex the individual exercise whose success rate to return
      * @return the success rate in % of the exercise with index exerciseIndex, or 0 if no records were found.
      */
-    public int exerciseSuccessRate(int exerciseIndex) {
-        int totalCount, correctCount;
-
-        totalCount = correctCount = 0;
-
-        for (ModuleAnswer answer : moduleAnswerList) {
-            if(answer.getExerciseIndex() == exerciseIndex) {
-                totalCount++;
-                if(answer.getResult())
-                    correctCount++;
-            }
-        }
+    public synchronized int exerciseSuccessRate(int exerciseIndex) {
+        int totalCount = exerciseCount(exerciseIndex);
+        int correctCount = totalCount == 0 ? 0 : exerciseCorrect[exerciseIndex];
 
         if(totalCount == 0)
             return 0;
@@ -221,16 +352,11 @@ public class ModuleStats {
      * Returns the number of times exerciseIndex is registered.
      * @return the number of times exerciseIndex is registered in {@link #moduleAnswerList}
      */
-    public int exerciseCount(int exerciseIndex) {
-        int result = 0;
-
+    public synchronized int exerciseCount(int exerciseIndex) {
         // TODO: For the purpose of this function, perhaps it is better to only return the succesful answers, worth considering..
-        for (ModuleAnswer answer : moduleAnswerList) {
-            if(answer.getExerciseIndex() == exerciseIndex)
-                result++;
-        }
-
-        return result;
+        if(exerciseIndex < 0 || exerciseIndex >= exerciseAttempts.length)
+            return 0;
+        return exerciseAttempts[exerciseIndex];
     }
 	
 	/**
@@ -239,8 +365,22 @@ public class ModuleStats {
 	 */
 	@SuppressWarnings("BooleanMethodIsAlwaysInverted")
     public boolean purgeStats() {
-		
-		moduleAnswerList = null;
-        return statsFile.exists() && statsFile.delete();
+
+		// Waits for a save that is in progress, so it can not recreate the file afterwards
+		synchronized (answerLog) {
+			synchronized (this) {
+				moduleAnswerList = null;
+				exerciseAttempts = exerciseCorrect = new int[0];
+				totalAttempts = totalCorrect = 0;
+				lastPracticed = 0;
+				savedAnswers = 0;
+			}
+			//noinspection ResultOfMethodCallIgnored
+			summaryFile.delete();
+			boolean deleted = answerLog.delete();
+			if(statsFile.exists())
+				deleted = statsFile.delete() || deleted;
+			return deleted;
+		}
 	}
 }
@@ -0,0 +1,396 @@
+package pk.contender.earmouse;
+
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Mixes 16-bit PCM buffers laid out on a timeline into one output buffer, using integer arithmetic only.
+ * <p>
+ * The timeline is made up of units, groups of samples that start at the same position, see {@link #addUnit}.
+ * The samples of a unit are summed and scaled by a fixed-point gain that depends on the amount of samples
+ * in the unit (to avoid excessive clipping), a unit can fade out with a linear release. All units are summed
+ * and clamped into the 16-bit range straight into the output buffer, in a single pass over the timeline.
+ * Sources are read in blocks through small scratch buffers, so they can be views on memory-mapped data and
+ * mixing needs no memory in proportion to the length of the timeline. Every block only depends on the timeline,
+ * so long timelines can be split into ranges that are mixed in parallel, see {@link #render(short[], ExecutorService, int)}.
+ * <p>
+ * Has no Android dependencies. Instances are not thread-safe, use one per thread.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class PcmMixer {
+
+    /** Fixed-point precision of the gain, a gain of 1.0 is 1 << GAIN_SHIFT */
+    private static final int GAIN_SHIFT = 12;
+    /** The smallest gain used, so that very large chords do not become silent */
+    private static final int MIN_GAIN = (1 << GAIN_SHIFT) / 10;
+
+    /** The amount of samples of the timeline that are mixed at a time */
+    private static final int BLOCK_SIZE = 4096;
+    /** The minimum amount of samples in a range that is mixed in parallel, smaller ranges are not worth a task */
+    private static final int MIN_RANGE_SIZE = 8 * BLOCK_SIZE;
+
+    /**
+     * A group of samples that start at the same position on the timeline. Reused once the timeline is cleared.
+     */
+    private static class Unit {
+        /** Only the first {@link #sourceCount} are part of the unit */
+        ShortBuffer [] sources = new ShortBuffer[0];
+        int sourceCount;
+        int start;
+        int length;
+        int releaseStart;
+        int releaseLength;
+        int gain;
+
+        void set(ShortBuffer [] sources, int sourceCount, int start, int length, int releaseStart, int releaseLength) {
+            if(this.sources.length < sourceCount)
+                this.sources = new ShortBuffer[sourceCount];
+            System.arraycopy(sources, 0, this.sources, 0, sourceCount);
+            this.sourceCount = sourceCount;
+            this.start = start;
+            this.length = length;
+            this.releaseStart = releaseStart;
+            this.releaseLength = releaseLength;
+            gain = gainFor(sourceCount);
+        }
+    }
+
+    /** The amount of interleaved channels in the sources and the output */
+    private final int channelCount;
+    /** The units of the timeline followed by the units that are kept for reuse */
+    private final List<Unit> units = new ArrayList<>();
+    /** The amount of units in {@link #units} that are on the timeline */
+    private int unitCount = 0;
+    /** The length of the timeline, the end of the unit that ends last */
+    private int length = 0;
+
+    /** Reusable mixer for rendering on the calling thread */
+    private final BlockMixer blockMixer = new BlockMixer();
+    /** The amount of output samples that were clipped during the last render */
+    private int clippedSamples = 0;
+
+    /**
+     * @param channelCount The amount of interleaved channels in the sources and the output
+     */
+    public PcmMixer(int channelCount) {
+        this.channelCount = channelCount;
+    }
+
+    /**
+     * Returns the fixed-point gain applied when mixing the given amount of samples.
+     * <p>
+     * Reduces the amplitude by 10% for every sample in the mix, with a lower bound of 10%.
+     * @param sampleCount The amount of samples that are mixed together
+     * @return The gain, where 1 << {@link #GAIN_SHIFT} equals 1.0
+     */
+    static int gainFor(int sampleCount) {
+        int gain = ((10 - sampleCount) << GAIN_SHIFT) / 10;
+        return gain < MIN_GAIN ? MIN_GAIN : gain;
+    }
+
+    /**
+     * Returns the length of a mix of the given sources, which is the length of the longest source.
+     * @param sources The buffers to mix
+     * @return The remaining length of the longest buffer
+     */
+    public static int mixLength(ShortBuffer [] sources) {
+        return mixLength(sources, sources.length);
+    }
+
+    /**
+     * Returns the length of a mix of the first sourceCount of the given sources.
+     * @see #mixLength(java.nio.ShortBuffer[])
+     */
+    public static int mixLength(ShortBuffer [] sources, int sourceCount) {
+        int length = 0;
+        for (int s = 0; s < sourceCount; s++) {
+            if(sources[s].remaining() > length)
+                length = sources[s].remaining();
+        }
+        return length;
+    }
+
+    /**
+     * Add a unit to the timeline.
+     * <p>
+     * The sources are read from their current position, which is left unchanged, and must not be modified
+     * until the timeline is cleared. Sources that are shorter than length are treated as silence once they
+     * run out. All positions and lengths are in samples and must be multiples of the channel count.
+     * @param sources The buffers that make up the unit
+     * @param start The position on the timeline where the unit starts
+     * @param length The amount of samples of the unit to mix, anything beyond this is not read at all
+     * @param releaseStart The position in the unit where it starts fading out
+     * @param releaseLength The amount of samples over which the unit fades out to silence, 0 for no release
+     */
+    public void addUnit(ShortBuffer [] sources, int start, int length, int releaseStart, int releaseLength) {
+        addUnit(sources, sources.length, start, length, releaseStart, releaseLength);
+    }
+
+    /**
+     * Add a unit made up of the first sourceCount of the given sources to the timeline. The array itself is
+     * not kept, so a caller can reuse it for every unit.
+     * @see #addUnit(java.nio.ShortBuffer[], int, int, int, int)
+     */
+    public void addUnit(ShortBuffer [] sources, int sourceCount, int start, int length, int releaseStart,
+                        int releaseLength) {
+        if(sourceCount == 0 || length <= 0)
+            return;
+        if(releaseLength <= 0)
+            releaseStart = Integer.MAX_VALUE;
+        if(unitCount == units.size())
+            units.add(new Unit());
+        units.get(unitCount++).set(sources, sourceCount, start, length, releaseStart, releaseLength);
+        this.length = Math.max(this.length, start + length);
+    }
+
+    /**
+     * @return The length of the timeline in samples.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Remove all units from the timeline.
+     */
+    public void clear() {
+        unitCount = 0;
+        length = 0;
+    }
+
+    /**
+     * Mix the whole timeline into output on the calling thread.
+     * @param output The buffer to write the mix to, at least {@link #getLength()} long
+     * @throws InterruptedException if the calling thread was interrupted, the output is incomplete
+     */
+    public void render(short [] output) throws InterruptedException {
+        render(output, null);
+    }
+
+    /**
+     * Mix the whole timeline into output on the calling thread, in order, and also write every mixed block
+     * to the given sink as soon as it is done. Blocks while the sink is full.
+     * @param output The buffer to write the mix to, at least {@link #getLength()} long
+     * @param sink The buffer that receives a copy of the mix block by block, null for none, it is not closed
+     * @throws InterruptedException if the calling thread was interrupted, the output is incomplete
+     */
+    public void render(short [] output, PcmRingBuffer sink) throws InterruptedException {
+        blockMixer.bind();
+        clippedSamples = blockMixer.renderRange(output, 0, length, sink);
+    }
+
+    /**
+     * Mix the whole timeline into output, split into ranges that are mixed in parallel.
+     * <p>
+     * The calling thread mixes one of the ranges itself and waits for the others, timelines that are too
+     * short to be worth splitting are mixed on the calling thread only.
+     * @param output The buffer to write the mix to, at least {@link #getLength()} long
+     * @param executor The executor to mix the other ranges on
+     * @param parallelism The maximum amount of ranges to split the timeline into
+     * @throws InterruptedException if the calling thread was interrupted, the output is incomplete
+     */
+    public void render(short [] output, ExecutorService executor, int parallelism) throws InterruptedException {
+        int rangeCount = Math.min(parallelism, length / MIN_RANGE_SIZE);
+        if(rangeCount <= 1) {
+            render(output);
+            return;
+        }
+
+        // Split on block boundaries, which are multiples of the channel count
+        int blockCount = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        List<BlockMixer> rangeMixers = new ArrayList<>(rangeCount - 1);
+        List<Future<Integer>> futures = new ArrayList<>(rangeCount - 1);
+        int clipped;
+        // Whatever goes wrong, the ranges are stopped and waited for, so that none of them is still reading the
+        // timeline or writing to output once this returns
+        try {
+            for (int r = 1; r < rangeCount; r++) {
+                final int from = blockCount * r / rangeCount * BLOCK_SIZE;
+                final int to = Math.min(length, blockCount * (r + 1) / rangeCount * BLOCK_SIZE);
+                final short [] target = output;
+                final BlockMixer rangeMixer = new BlockMixer();
+                rangeMixer.bind();
+                rangeMixers.add(rangeMixer);
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws InterruptedException {
+                        return rangeMixer.renderRange(target, from, to, null);
+                    }
+                }));
+            }
+
+            blockMixer.bind();
+            clipped = blockMixer.renderRange(output, 0, blockCount / rangeCount * BLOCK_SIZE, null);
+            for (Future<Integer> future : futures)
+                clipped += future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof InterruptedException)
+                throw (InterruptedException) cause;
+            if(cause instanceof Error)
+                throw (Error) cause;
+            // The ranges throw no other checked exceptions
+            throw (RuntimeException) cause;
+        } finally {
+            stopRanges(rangeMixers, futures);
+        }
+        clippedSamples = clipped;
+    }
+
+    /**
+     * Stop the given ranges and wait until none of them is running anymore, even if the calling thread is
+     * interrupted. Their results and failures are ignored.
+     * <p>
+     * The ranges are stopped with a flag instead of {@link Future#cancel(boolean)}, because the
+     * {@link Future#get()} of a cancelled task returns without waiting for it.
+     */
+    private void stopRanges(List<BlockMixer> rangeMixers, List<Future<Integer>> futures) {
+        for (BlockMixer rangeMixer : rangeMixers)
+            rangeMixer.stopped = true;
+        boolean interrupted = false;
+        for (Future<Integer> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException | CancellationException e) {
+                    break;
+                }
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Mixes ranges of the timeline block by block, with its own scratch buffers and views on the sources
+     * so that several BlockMixers can work on the same timeline at once.
+     */
+    private class BlockMixer {
+        /** Scratch buffer the units are summed into */
+        private final int [] mixBlock = new int[BLOCK_SIZE];
+        /** Scratch buffer the samples of a single unit are summed into */
+        private final int [] unitBlock = new int[BLOCK_SIZE];
+        /** Scratch buffer the sources are read into */
+        private final short [] chunk = new short[BLOCK_SIZE];
+        /** Views on the sources of every unit on the timeline, in the same order as {@link #units} */
+        private ShortBuffer [][] sources = null;
+        /** Set from another thread to stop {@link #renderRange} after the current block */
+        private volatile boolean stopped = false;
+
+        /**
+         * Take views on the sources of the current units, must be called before rendering and on the
+         * thread that modifies the timeline.
+         */
+        void bind() {
+            sources = new ShortBuffer[unitCount][];
+            for (int u = 0; u < sources.length; u++) {
+                Unit unit = units.get(u);
+                sources[u] = new ShortBuffer[unit.sourceCount];
+                for (int s = 0; s < unit.sourceCount; s++)
+                    sources[u][s] = unit.sources[s].duplicate();
+            }
+        }
+
+        /**
+         * Mix the blocks in the range [from, to> of the timeline into the same positions in output.
+         * Checks between blocks whether the thread was interrupted or this BlockMixer was stopped, so that
+         * cancelled renders stop early.
+         * @param sink If not null, every block is also written here once it is mixed
+         * @return The amount of samples that were clipped.
+         * @throws InterruptedException if the thread was interrupted or this BlockMixer was stopped
+         */
+        int renderRange(short [] output, int from, int to, PcmRingBuffer sink) throws InterruptedException {
+            int clipped = 0;
+            for (int blockStart = from; blockStart < to; blockStart += BLOCK_SIZE) {
+                if(stopped || Thread.interrupted())
+                    throw new InterruptedException();
+                int blockLength = Math.min(BLOCK_SIZE, to - blockStart);
+                clipped += renderBlock(output, blockStart, blockLength);
+                if(sink != null)
+                    sink.write(output, blockStart, blockLength);
+            }
+            return clipped;
+        }
+
+        /**
+         * Mix a block of the timeline into the same positions in output.
+         * @return The amount of samples that were clipped.
+         */
+        private int renderBlock(short [] output, int blockStart, int blockLength) {
+            final int [] mix = mixBlock;
+            final int [] acc = unitBlock;
+            final short [] buf = chunk;
+            Arrays.fill(mix, 0, blockLength, 0);
+
+            for (int u = 0; u < sources.length; u++) {
+                Unit unit = units.get(u);
+                // The part of the unit that overlaps this block, relative to the start of the unit
+                int from = Math.max(0, blockStart - unit.start);
+                int to = Math.min(unit.length, blockStart + blockLength - unit.start);
+                if(from >= to)
+                    continue;
+                int count = to - from;
+                int mixOffset = unit.start + from - blockStart;
+
+                Arrays.fill(acc, 0, count, 0);
+                for (ShortBuffer source : sources[u]) {
+                    int available = Math.min(count, source.remaining() - from);
+                    if(available <= 0)
+                        continue;
+                    int position = source.position();
+                    source.position(position + from);
+                    source.get(buf, 0, available);
+                    source.position(position);
+                    for (int i = 0; i < available; i++)
+                        acc[i] += buf[i];
+                }
+
+                final int gain = unit.gain;
+                final int releaseFrames = unit.releaseLength / channelCount;
+                for (int i = 0; i < count; i++) {
+                    int value = (acc[i] * gain) >> GAIN_SHIFT;
+                    int offset = from + i;
+                    if(offset >= unit.releaseStart) {
+                        int framesLeft = releaseFrames - (offset - unit.releaseStart) / channelCount;
+                        int envelope = (Math.max(0, framesLeft) << GAIN_SHIFT) / releaseFrames;
+                        value = (value * envelope) >> GAIN_SHIFT;
+                    }
+                    mix[mixOffset + i] += value;
+                }
+            }
+
+            int clipped = 0;
+            for (int i = 0; i < blockLength; i++) {
+                int sum = mix[i];
+                //clip into range
+                if(sum > Short.MAX_VALUE) {
+                    sum = Short.MAX_VALUE;
+                    clipped++;
+                } else if(sum < Short.MIN_VALUE) {
+                    sum = Short.MIN_VALUE;
+                    clipped++;
+                }
+                output[blockStart + i] = (short) sum;
+            }
+            return clipped;
+        }
+    }
+
+    /**
+     * @return The amount of output samples that were clipped during the last call to {@link #render}
+     */
+    public int getClippedSamples() {
+        return clippedSamples;
+    }
+}
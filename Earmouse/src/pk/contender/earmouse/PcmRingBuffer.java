@@ -0,0 +1,102 @@
+package pk.contender.earmouse;
+
+/**
+ * A bounded FIFO of 16-bit PCM samples between a single producer and a single consumer thread.
+ * <p>
+ * The producer blocks while the buffer is full and the consumer blocks while it is empty, until the producer
+ * closes the buffer to mark the end of the stream. Either side can abort the stream, after which writes are
+ * dropped and reads report the end of the stream.
+ * <p>
+ * Has no Android dependencies. All methods are thread-safe.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class PcmRingBuffer {
+
+    private final short [] buffer;
+    /** The position of the oldest sample in {@link #buffer} */
+    private int readPosition = 0;
+    /** The amount of samples in {@link #buffer} */
+    private int count = 0;
+    private boolean closed = false;
+    private boolean aborted = false;
+
+    /**
+     * @param capacity The maximum amount of samples held at a time
+     */
+    public PcmRingBuffer(int capacity) {
+        buffer = new short[Math.max(1, capacity)];
+    }
+
+    /**
+     * Append samples, blocking while the buffer is full.
+     * @param src The samples to append
+     * @param offset The position of the first sample in src
+     * @param length The amount of samples to append
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    public synchronized void write(short [] src, int offset, int length) throws InterruptedException {
+        while(length > 0) {
+            while(count == buffer.length && !aborted)
+                wait();
+            if(aborted)
+                return;
+            if(closed)
+                throw new IllegalStateException("Write to a closed PcmRingBuffer");
+
+            int writePosition = (readPosition + count) % buffer.length;
+            int n = Math.min(length, Math.min(buffer.length - count, buffer.length - writePosition));
+            System.arraycopy(src, offset, buffer, writePosition, n);
+            count += n;
+            offset += n;
+            length -= n;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Take up to length samples, blocking while the buffer is empty and the stream has not ended.
+     * @param dst The buffer to copy the samples into
+     * @param offset The position in dst for the first sample
+     * @param length The maximum amount of samples to take
+     * @return The amount of samples taken, or -1 if the stream has ended or was aborted.
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    public synchronized int read(short [] dst, int offset, int length) throws InterruptedException {
+        while(count == 0 && !closed && !aborted)
+            wait();
+        if(aborted || count == 0)
+            return -1;
+
+        int n = Math.min(length, Math.min(count, buffer.length - readPosition));
+        System.arraycopy(buffer, readPosition, dst, offset, n);
+        readPosition = (readPosition + n) % buffer.length;
+        count -= n;
+        notifyAll();
+        return n;
+    }
+
+    /**
+     * Mark the end of the stream, the consumer can still read the samples that are left.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * End the stream immediately, samples that are left are discarded and blocked calls return.
+     */
+    public synchronized void abort() {
+        aborted = true;
+        count = 0;
+        notifyAll();
+    }
+
+    /**
+     * @return True if {@link #abort()} was called.
+     */
+    public synchronized boolean isAborted() {
+        return aborted;
+    }
+}
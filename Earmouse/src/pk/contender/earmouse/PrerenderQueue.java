@@ -0,0 +1,284 @@
+package pk.contender.earmouse;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Picks the next few exercises of a {@link pk.contender.earmouse.Module} in advance and renders their audio
+ * in the background, so that moving on to the next exercise does not have to wait for it to be generated.
+ * <p>
+ * The exercises are picked with {@link Module#getWeightedExerciseIndex()}, which depends on the Module's
+ * statistics. Whenever the statistics change, call {@link #onStatsChanged()}: the exercises are ranked again on
+ * a background thread, and queued exercises that lost too much of the weight they were picked with are
+ * discarded and picked again, see {@link #MIN_WEIGHT_FRACTION}. Until then exercises are picked from the
+ * previous ranking. All queued exercises are discarded when the preferred
+ * {@link pk.contender.earmouse.RenderFormat} changes.
+ * <p>
+ * Must only be used from the UI thread, ranking and rendering happen on background threads.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class PrerenderQueue {
+
+    /** The default amount of exercises that are rendered ahead */
+    public static final int DEFAULT_LOOKAHEAD = 2;
+    /**
+     * A queued exercise is discarded when its weight in a new ranking drops below this fraction of the weight it
+     * was picked with. The weight is the chance {@link Module#getWeightedExerciseIndex(int[])} picks it.
+     */
+    private static final float MIN_WEIGHT_FRACTION = 0.5f;
+
+    /**
+     * An exercise that was picked in advance, with its (possibly still rendering) audio.
+     */
+    public static class Entry {
+        /** The index of the Exercise in its Module */
+        public final int exerciseIndex;
+        /** The concrete Exercise as generated by {@link Module#getExercise(int)} */
+        public final Exercise exercise;
+        /** The rendered audio, as produced by {@link pk.contender.earmouse.ExerciseRenderer#render(Exercise)} */
+        public final Future<short[]> audio;
+        /** The format of {@link #audio} */
+        public final RenderFormat format;
+        /** The weight of the exercise in the ranking it was picked from, see {@link #MIN_WEIGHT_FRACTION} */
+        final int weight;
+
+        Entry(int exerciseIndex, Exercise exercise, Future<short[]> audio, RenderFormat format, int weight) {
+            this.exerciseIndex = exerciseIndex;
+            this.exercise = exercise;
+            this.audio = audio;
+            this.format = format;
+            this.weight = weight;
+        }
+    }
+
+    private final Context mCtx;
+    private final Module mod;
+    private final int lookahead;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    /** Ranks the exercises of {@link #mod} after its statistics changed */
+    private final ExecutorService rankingExecutor = Executors.newSingleThreadExecutor();
+    private final Handler handler = new Handler();
+    /** Replaced when the preferred format changes, only ever used on the {@link #executor} thread */
+    private ExerciseRenderer renderer = null;
+    private final LinkedList<Entry> entries = new LinkedList<>();
+    /** The most recent exercise ranking of {@link #mod}, new entries are picked from it */
+    private int [] ranking;
+    /** The position of every exercise index in {@link #ranking} */
+    private int [] positions;
+    /** True while a ranking is being computed */
+    private boolean rankingInProgress = false;
+    /** True if the statistics changed again after the ranking that is being computed was started */
+    private boolean rankingOutdated = false;
+    private boolean isShutdown = false;
+
+    /**
+     * @param context The application context
+     * @param mod The Module to pick exercises from
+     * @param lookahead The amount of exercises to render ahead
+     */
+    public PrerenderQueue(Context context, Module mod, int lookahead) {
+        mCtx = context;
+        this.mod = mod;
+        this.lookahead = Math.max(1, lookahead);
+        // The first entries are needed right away, so the first ranking is computed here
+        int [] firstRanking = mod.getExerciseRanking();
+        setRanking(firstRanking, getPositions(firstRanking));
+        fill();
+    }
+
+    /**
+     * @return The Module this queue picks exercises from
+     */
+    public Module getModule() {
+        return mod;
+    }
+
+    /**
+     * Take the next exercise from the queue and start rendering another one in its place.
+     * @return The next exercise, its audio may still be rendering.
+     */
+    public Entry next() {
+        fill();
+        Entry entry = entries.removeFirst();
+        topUp();
+        return entry;
+    }
+
+    /**
+     * Rank the exercises of {@link #mod} again in the background and discard the queued exercises whose weight
+     * dropped too much once that is done. Call this when the statistics of {@link #mod} changed.
+     */
+    public void onStatsChanged() {
+        if(isShutdown)
+            return;
+        if(rankingInProgress) {
+            rankingOutdated = true;
+            return;
+        }
+        rankingInProgress = true;
+        rankingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int [] newRanking = null;
+                int [] newPositions = null;
+                try {
+                    newRanking = mod.getExerciseRanking();
+                    newPositions = getPositions(newRanking);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                final int [] resultRanking = newRanking;
+                final int [] resultPositions = newPositions;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onRankingComputed(resultRanking, resultPositions);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stop rendering, the queue can not be used after this.
+     */
+    public void shutdown() {
+        isShutdown = true;
+        entries.clear();
+        executor.shutdownNow();
+        rankingExecutor.shutdownNow();
+    }
+
+    /**
+     * Discard the queued entries if the preferred format changed since they were picked, then pick new
+     * exercises until there are {@link #lookahead} entries in the queue.
+     */
+    private void fill() {
+        RenderFormat currentFormat = RenderFormat.getPreferred(mCtx);
+        if(renderer == null || !renderer.getFormat().equals(currentFormat)) {
+            discardEntries();
+            renderer = new ExerciseRenderer(mCtx, currentFormat);
+        }
+        topUp();
+    }
+
+    /**
+     * Called on the UI thread with the ranking computed by {@link #onStatsChanged()}.
+     * @param newRanking The new ranking, null if it could not be computed
+     * @param newPositions The position of every exercise index in newRanking
+     */
+    private void onRankingComputed(int [] newRanking, int [] newPositions) {
+        rankingInProgress = false;
+        if(isShutdown)
+            return;
+        if(newRanking != null) {
+            discardOutweighed(newRanking, newPositions);
+            setRanking(newRanking, newPositions);
+            topUp();
+        }
+        if(rankingOutdated) {
+            rankingOutdated = false;
+            onStatsChanged();
+        }
+    }
+
+    /**
+     * Discard the queued entries whose exercise has less than {@link #MIN_WEIGHT_FRACTION} of the weight it was
+     * picked with in the given ranking. All entries are discarded if the amount of exercises changed.
+     */
+    private void discardOutweighed(int [] newRanking, int [] newPositions) {
+        boolean exercisesChanged = newRanking.length != ranking.length;
+        int discarded = 0;
+        Iterator<Entry> iterator = entries.iterator();
+        while(iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if(exercisesChanged
+                    || getWeight(newRanking, newPositions, entry.exerciseIndex) < entry.weight * MIN_WEIGHT_FRACTION) {
+                entry.audio.cancel(false);
+                iterator.remove();
+                discarded++;
+            }
+        }
+        if(discarded > 0)
+            Log.d("DEBUG", "PrerenderQueue: exercise weighting changed, discarding " + discarded + " entries");
+    }
+
+    private void setRanking(int [] newRanking, int [] newPositions) {
+        ranking = newRanking;
+        positions = newPositions;
+    }
+
+    /**
+     * @param ranking A ranking as returned by {@link Module#getExerciseRanking()}
+     * @return The position of every exercise index in the ranking
+     */
+    private static int [] getPositions(int [] ranking) {
+        int [] positions = new int[ranking.length];
+        for(int i = 0; i < ranking.length; i++)
+            positions[ranking[i]] = i;
+        return positions;
+    }
+
+    /**
+     * @return The weight of the given exercise in the given ranking, the linear distribution of
+     * {@link Module#getWeightedExerciseIndex(int[])} makes it proportional to the distance from the end.
+     */
+    private static int getWeight(int [] ranking, int [] positions, int exerciseIndex) {
+        return ranking.length - positions[exerciseIndex];
+    }
+
+    private void discardEntries() {
+        for(Entry entry : entries)
+            entry.audio.cancel(false);
+        entries.clear();
+    }
+
+    /**
+     * Pick and submit exercises until there are {@link #lookahead} entries in the queue.
+     */
+    private void topUp() {
+        while(entries.size() < lookahead) {
+            int exerciseIndex = mod.getWeightedExerciseIndex(ranking);
+            final Exercise exercise = mod.getExercise(exerciseIndex);
+            final ExerciseRenderer entryRenderer = renderer;
+            Future<short[]> audio = executor.submit(new Callable<short[]>() {
+                @Override
+                public short[] call() throws Exception {
+                    return entryRenderer.render(exercise);
+                }
+            });
+            entries.add(new Entry(exerciseIndex, exercise, audio, entryRenderer.getFormat(),
+                    getWeight(ranking, positions, exerciseIndex)));
+        }
+    }
+
+    /**
+     * Wait for the audio of the given entry, for use on a background thread.
+     * @param entry The entry to wait for
+     * @return The rendered audio or null if rendering failed or was cancelled, or if the calling thread was
+     * interrupted, in which case its interrupted status is set again.
+     */
+    public static short [] awaitAudio(Entry entry) {
+        try {
+            return entry.audio.get();
+        } catch (InterruptedException e) {
+            // Let the caller see that it was cancelled
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | CancellationException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package pk.contender.earmouse;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of rendered exercise audio, keyed by the concrete notes and timing of the {@link pk.contender.earmouse.Exercise}
+ * and the {@link pk.contender.earmouse.RenderFormat} it was rendered in.
+ * <p>
+ * Since {@link Module#getExercise(int)} transposes exercises to a random base note, the same concrete
+ * exercises come up again and again. Rendered audio is kept in a memory tier (least-recently-used, bound by
+ * a memory budget) and a disk tier in the App's files directory (bound by a size cap, evicting the least
+ * recently used files). Disk entries are named after a hash of their key.
+ * <p>
+ * All methods are thread-safe. Only the memory tier and the counters are guarded by the lock, files are read
+ * and written outside of it so that a memory hit never waits for storage. The returned buffers are shared and
+ * must not be modified.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class RenderCache {
+
+    /** The default memory budget in bytes */
+    public static final int DEFAULT_MEMORY_BUDGET = 8 * 1024 * 1024;
+    /** The default maximum size of the disk tier in bytes */
+    public static final long DEFAULT_DISK_BUDGET = 32 * 1024 * 1024;
+    /** The name of the directory in the files directory that holds the disk tier */
+    private static final String CACHE_DIR_NAME = "render_cache";
+    private static final String CACHE_FILE_SUFFIX = ".pcm";
+
+    private static RenderCache instance = null;
+
+    private final File cacheDir;
+    /** Rendered audio by key, in access order so the eldest entry is the least recently used one */
+    private final LinkedHashMap<String, short[]> memoryCache = new LinkedHashMap<>(16, 0.75f, true);
+    private final int memoryBudget;
+    private final long diskBudget;
+    private int memoryUsed = 0;
+    /** The total size of the files in {@link #cacheDir}, -1 if not determined yet */
+    private long diskUsed = -1;
+    /** True while a thread is running {@link #trimDisk()} */
+    private boolean trimming = false;
+
+    /* Counters */
+    private int memoryHits = 0;
+    private int diskHits = 0;
+    private int misses = 0;
+    private int memoryEvictions = 0;
+    private int diskEvictions = 0;
+
+    private RenderCache(Context context, int memoryBudget, long diskBudget) {
+        cacheDir = new File(context.getFilesDir(), CACHE_DIR_NAME);
+        this.memoryBudget = memoryBudget;
+        this.diskBudget = diskBudget;
+    }
+
+    /**
+     * Returns the application wide RenderCache, creating it with the default budgets if necessary.
+     * @param context Any context
+     * @return the application wide RenderCache.
+     */
+    public static synchronized RenderCache getInstance(Context context) {
+        if(instance == null)
+            instance = new RenderCache(context.getApplicationContext(), DEFAULT_MEMORY_BUDGET, DEFAULT_DISK_BUDGET);
+        return instance;
+    }
+
+    /**
+     * Returns the canonical key for a concrete Exercise, e.g. "1ch@22050:750+150:12,16,19;14,17,21" for two triads
+     * rendered in mono at 22.05 kHz, 750 milliseconds apart with a 150 millisecond release.
+     * @param exercise The Exercise, as returned by {@link Module#getExercise(int)}
+     * @param format The format the Exercise is rendered in
+     * @return The key under which the Exercise's audio is cached
+     */
+    public static String keyFor(Exercise exercise, RenderFormat format) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(format).append(':');
+        sb.append(exercise.unitDuration).append('+').append(exercise.unitRelease).append(':');
+        for(int unit = 0; unit < exercise.getUnitCount(); unit++) {
+            if(unit > 0)
+                sb.append(';');
+            for(int i = 0; i < exercise.getUnitSize(unit); i++) {
+                if(i > 0)
+                    sb.append(',');
+                sb.append(exercise.getNote(unit, i));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Look up the rendered audio for the given key, first in memory and then on disk.
+     * @param key The key as returned by {@link #keyFor(Exercise, RenderFormat)}
+     * @return The rendered audio or null if it is not cached.
+     */
+    public short [] get(String key) {
+        synchronized (this) {
+            short [] pcm = memoryCache.get(key);
+            if(pcm != null) {
+                memoryHits++;
+                return pcm;
+            }
+        }
+
+        // Entries only appear on disk complete, see writePcm(), so they can be read without holding the lock
+        File cacheFile = fileFor(key);
+        if(cacheFile.exists()) {
+            try {
+                short [] pcm = readPcm(cacheFile);
+                //noinspection ResultOfMethodCallIgnored
+                cacheFile.setLastModified(System.currentTimeMillis());
+                synchronized (this) {
+                    diskHits++;
+                    putInMemory(key, pcm);
+                }
+                return pcm;
+            } catch (IOException e) {
+                e.printStackTrace();
+                deleteFromDisk(cacheFile);
+            }
+        }
+
+        synchronized (this) {
+            misses++;
+        }
+        return null;
+    }
+
+    /**
+     * Store rendered audio in both tiers, the disk tier is written on the calling thread.
+     * @param key The key as returned by {@link #keyFor(Exercise, RenderFormat)}
+     * @param pcm The rendered audio, must not be modified afterwards.
+     */
+    public void put(String key, short [] pcm) {
+        boolean measure;
+        synchronized (this) {
+            putInMemory(key, pcm);
+            measure = diskUsed < 0;
+        }
+
+        if(!cacheDir.exists() && !cacheDir.mkdirs()) {
+            Log.d("DEBUG", "RenderCache: could not create " + cacheDir);
+            return;
+        }
+        if(measure) {
+            long measured = measureDiskUsed();
+            synchronized (this) {
+                if(diskUsed < 0)
+                    diskUsed = measured;
+            }
+        }
+
+        File cacheFile = fileFor(key);
+        if(cacheFile.exists())
+            return;
+        boolean overBudget;
+        try {
+            writePcm(cacheFile, pcm);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        synchronized (this) {
+            diskUsed += cacheFile.length();
+            overBudget = diskUsed > diskBudget && !trimming;
+            if(overBudget)
+                trimming = true;
+        }
+        if(overBudget)
+            trimDisk();
+    }
+
+    /**
+     * Remove all entries from both tiers, the counters are kept.
+     */
+    public void clear() {
+        synchronized (this) {
+            memoryCache.clear();
+            memoryUsed = 0;
+            diskUsed = 0;
+        }
+        File [] files = cacheDir.listFiles();
+        if(files != null)
+            for(File file : files)
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+    }
+
+    public synchronized int getMemoryHits() {
+        return memoryHits;
+    }
+
+    public synchronized int getDiskHits() {
+        return diskHits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    public synchronized int getMemoryEvictions() {
+        return memoryEvictions;
+    }
+
+    public synchronized int getDiskEvictions() {
+        return diskEvictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RenderCache: " + memoryHits + " memory hits, " + diskHits + " disk hits, " + misses + " misses, "
+                + memoryEvictions + " memory evictions, " + diskEvictions + " disk evictions, "
+                + memoryUsed + " bytes in memory, " + diskUsed + " bytes on disk";
+    }
+
+    private void putInMemory(String key, short [] pcm) {
+        short [] previous = memoryCache.put(key, pcm);
+        if(previous != null)
+            memoryUsed -= previous.length * 2;
+        memoryUsed += pcm.length * 2;
+
+        // Evict least recently used entries until we are within budget, always keep the newest entry.
+        Iterator<Map.Entry<String, short[]>> it = memoryCache.entrySet().iterator();
+        while(memoryUsed > memoryBudget && memoryCache.size() > 1 && it.hasNext()) {
+            memoryUsed -= it.next().getValue().length * 2;
+            it.remove();
+            memoryEvictions++;
+        }
+    }
+
+    /**
+     * Delete the least recently used files until the disk tier is within its size cap, called without holding
+     * the lock by the one thread that set {@link #trimming}. Also corrects {@link #diskUsed} for writes that
+     * raced with each other.
+     */
+    private void trimDisk() {
+        long total = 0;
+        int evicted = 0;
+        File [] files = listEntries();
+        if(files != null) {
+            // Read every modification time once, the files may be touched while sorting
+            final long [] lastModified = new long[files.length];
+            Integer [] order = new Integer[files.length];
+            for(int i = 0; i < files.length; i++) {
+                lastModified[i] = files[i].lastModified();
+                order[i] = i;
+                total += files[i].length();
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    long l = lastModified[lhs], r = lastModified[rhs];
+                    return l < r ? -1 : (l == r ? 0 : 1);
+                }
+            });
+            for(int i = 0; i < order.length - 1 && total > diskBudget; i++) {
+                File file = files[order[i]];
+                long length = file.length();
+                if(file.delete()) {
+                    total -= length;
+                    evicted++;
+                }
+            }
+        }
+        synchronized (this) {
+            diskUsed = total;
+            diskEvictions += evicted;
+            trimming = false;
+        }
+    }
+
+    private void deleteFromDisk(File file) {
+        long length = file.length();
+        if(file.delete()) {
+            synchronized (this) {
+                if(diskUsed >= 0)
+                    diskUsed -= length;
+            }
+        }
+    }
+
+    private long measureDiskUsed() {
+        long total = 0;
+        File [] files = listEntries();
+        if(files != null)
+            for(File file : files)
+                total += file.length();
+        return total;
+    }
+
+    /**
+     * @return The entries in {@link #cacheDir}, without the temporary files that are being written, or null
+     * if the directory could not be listed.
+     */
+    private File [] listEntries() {
+        return cacheDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(CACHE_FILE_SUFFIX);
+            }
+        });
+    }
+
+    private File fileFor(String key) {
+        return new File(cacheDir, Hashing.sha1().hashString(key, Charsets.UTF_8).toString() + CACHE_FILE_SUFFIX);
+    }
+
+    /**
+     * Read little-endian 16-bit PCM data from the given file.
+     */
+    private static short [] readPcm(File file) throws IOException {
+        byte [] bytes = new byte[(int) file.length()];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            int read = 0;
+            while(read < bytes.length) {
+                int count = fis.read(bytes, read, bytes.length - read);
+                if(count < 0)
+                    throw new IOException("Unexpected end of " + file);
+                read += count;
+            }
+        } finally {
+            fis.close();
+        }
+        short [] pcm = new short[bytes.length / 2];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(pcm);
+        return pcm;
+    }
+
+    /**
+     * Write the given PCM data as little-endian 16-bit samples, through a temporary file so that a
+     * partially written entry is never picked up.
+     */
+    private static void writePcm(File file, short [] pcm) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(pcm.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asShortBuffer().put(pcm);
+
+        // Unique per thread, two threads may write the same entry at once
+        File tmpFile = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        try {
+            fos.write(bytes.array());
+        } finally {
+            fos.close();
+        }
+        if(!tmpFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            throw new IOException("Could not rename " + tmpFile + " to " + file);
+        }
+    }
+}
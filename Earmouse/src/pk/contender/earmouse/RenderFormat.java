@@ -0,0 +1,114 @@
+package pk.contender.earmouse;
+
+import android.app.Activity;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+/**
+ * The PCM format that exercises are rendered and played in.
+ * <p>
+ * The samples are stored as stereo at {@link #NATIVE_RATE}, but the piano tones are effectively mono, so on
+ * low-end devices the user can have exercises rendered in mono and/or at half the sampling rate. This halves
+ * or quarters the memory, mixing time and disk space that every exercise takes.
+ * The selection is stored in the SharedPreferences, see {@link #getPreferred(android.content.Context)}.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class RenderFormat {
+
+    /** The sampling rate of the samples in the {@link pk.contender.earmouse.SampleArchive} */
+    public static final int NATIVE_RATE = 44100;
+    /** The amount of interleaved channels of the samples in the {@link pk.contender.earmouse.SampleArchive} */
+    public static final int NATIVE_CHANNELS = 2;
+    /** The reduced sampling rate, samples are resampled to this rate by {@link pk.contender.earmouse.SampleConverter} */
+    public static final int REDUCED_RATE = NATIVE_RATE / 2;
+
+    /** The format of the samples themselves, needs no conversion */
+    public static final RenderFormat NATIVE = new RenderFormat(NATIVE_RATE, NATIVE_CHANNELS);
+
+    /* SharedPreferences constants */
+    public static final String PREFERENCES_MONO = "preferences_renderformat_mono";
+    public static final String PREFERENCES_REDUCEDRATE = "preferences_renderformat_reducedrate";
+
+    public final int sampleRate;
+    public final int channelCount;
+
+    public RenderFormat(int sampleRate, int channelCount) {
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+    }
+
+    /**
+     * Returns the format selected by the user. If the user never made a selection, low-RAM devices default
+     * to mono at the reduced rate and all other devices to {@link #NATIVE}.
+     * @param context Any context
+     * @return The preferred RenderFormat
+     */
+    public static RenderFormat getPreferred(Context context) {
+        SharedPreferences settings = context.getSharedPreferences(Main.PREFS_NAME, Activity.MODE_PRIVATE);
+        boolean lowRam = isLowRamDevice(context);
+        boolean mono = settings.getBoolean(PREFERENCES_MONO, lowRam);
+        boolean reducedRate = settings.getBoolean(PREFERENCES_REDUCEDRATE, lowRam);
+        if(!mono && !reducedRate)
+            return NATIVE;
+        return new RenderFormat(reducedRate ? REDUCED_RATE : NATIVE_RATE, mono ? 1 : NATIVE_CHANNELS);
+    }
+
+    /**
+     * Store the format selected by the user.
+     * @param context Any context
+     * @param mono True to render in mono
+     * @param reducedRate True to render at {@link #REDUCED_RATE}
+     */
+    public static void setPreferred(Context context, boolean mono, boolean reducedRate) {
+        SharedPreferences settings = context.getSharedPreferences(Main.PREFS_NAME, Activity.MODE_PRIVATE);
+        settings.edit().putBoolean(PREFERENCES_MONO, mono).putBoolean(PREFERENCES_REDUCEDRATE, reducedRate).apply();
+    }
+
+    private static boolean isLowRamDevice(Context context) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT)
+            return false;
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return am != null && am.isLowRamDevice();
+    }
+
+    /**
+     * @return True if samples must be converted to be used in this format.
+     */
+    public boolean needsConversion() {
+        return sampleRate != NATIVE_RATE || channelCount != NATIVE_CHANNELS;
+    }
+
+    /**
+     * @param durationMillis A duration in milliseconds
+     * @return The amount of shorts that make up whole frames of the given duration in this format.
+     */
+    public int shortsFor(int durationMillis) {
+        return (int) ((long) sampleRate * durationMillis / 1000) * channelCount;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof RenderFormat))
+            return false;
+        RenderFormat other = (RenderFormat) o;
+        return sampleRate == other.sampleRate && channelCount == other.channelCount;
+    }
+
+    @Override
+    public int hashCode() {
+        return sampleRate * 31 + channelCount;
+    }
+
+    /**
+     * @return A short description such as "1ch@22050", also used in the keys of the {@link pk.contender.earmouse.RenderCache}.
+     */
+    @Override
+    public String toString() {
+        return channelCount + "ch@" + sampleRate;
+    }
+}
@@ -0,0 +1,143 @@
+package pk.contender.earmouse;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs render jobs one at a time on a background thread, where every newly scheduled job supersedes the
+ * ones scheduled before it.
+ * <p>
+ * Every job gets a generation number. Scheduling a job cancels the job that is running by interrupting it,
+ * the {@link pk.contender.earmouse.PcmMixer} checks for this between blocks, and jobs that were queued but
+ * did not start yet are skipped. A job's result is only delivered if no other job was scheduled in the
+ * meantime, so whoever schedules jobs only ever sees the result of the latest one.
+ * <p>
+ * Must only be used from the UI thread, results are delivered on the UI thread.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class RenderScheduler {
+
+    /**
+     * A unit of work for the RenderScheduler.
+     * @param <T> The type of the result
+     */
+    public interface Job<T> {
+        /**
+         * Do the work, called on the render thread.
+         * Should give up by throwing an exception as soon as the thread is interrupted.
+         * @param generation The generation of this job, see {@link #isCurrent(int)}
+         * @return The result
+         * @throws Exception on failure or cancellation
+         */
+        public T run(int generation) throws Exception;
+
+        /**
+         * Called on the UI thread with the result of {@link #run}, only if this is still the latest job.
+         * @param result The result
+         */
+        public void onComplete(T result);
+
+        /**
+         * Called on the UI thread if {@link #run} failed, only if this is still the latest job.
+         * @param e The exception thrown by run
+         */
+        public void onFailed(Exception e);
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    /** The generation of the latest job, read from the render thread */
+    private volatile int generation = 0;
+    /** The latest job, null if none was scheduled yet */
+    private Future<?> current = null;
+
+    /**
+     * Schedule a job, superseding all jobs scheduled before it.
+     * @param job The job to run
+     * @return The generation of the job
+     */
+    public <T> int schedule(final Job<T> job) {
+        cancel();
+        final int jobGeneration = generation;
+        current = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if(!isCurrent(jobGeneration))
+                    return;
+                try {
+                    final T result = job.run(jobGeneration);
+                    if(Thread.interrupted())
+                        throw new InterruptedIOException("Render job " + jobGeneration + " was cancelled");
+                    deliver(jobGeneration, new Runnable() {
+                        @Override
+                        public void run() {
+                            job.onComplete(result);
+                        }
+                    });
+                } catch (final Exception e) {
+                    if(!isCurrent(jobGeneration)) {
+                        Log.d("DEBUG", "RenderScheduler: job " + jobGeneration + " was superseded");
+                        return;
+                    }
+                    e.printStackTrace();
+                    deliver(jobGeneration, new Runnable() {
+                        @Override
+                        public void run() {
+                            job.onFailed(e);
+                        }
+                    });
+                }
+            }
+        });
+        return jobGeneration;
+    }
+
+    /**
+     * @param jobGeneration The generation of a job
+     * @return True if no job was scheduled after the job with the given generation and it was not cancelled.
+     */
+    public boolean isCurrent(int jobGeneration) {
+        return jobGeneration == generation;
+    }
+
+    /**
+     * Cancel the latest job, its result will not be delivered.
+     */
+    public void cancel() {
+        generation++;
+        if(current != null)
+            current.cancel(true);
+        current = null;
+    }
+
+    /**
+     * Cancel the latest job and stop the render thread, the scheduler can not be used after this.
+     */
+    public void shutdown() {
+        cancel();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Run the given callback on the UI thread if the given generation is still current by then, for jobs
+     * that have something to deliver before they complete.
+     * @param jobGeneration The generation of the job
+     * @param callback The callback to run
+     */
+    public void deliver(final int jobGeneration, final Runnable callback) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(isCurrent(jobGeneration))
+                    callback.run();
+            }
+        });
+    }
+}
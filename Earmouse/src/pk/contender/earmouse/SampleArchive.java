@@ -0,0 +1,104 @@
+package pk.contender.earmouse;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only access to the packed sample archive in the assets, as created by tools/pack_samples.py.
+ * <p>
+ * The archive is memory-mapped straight from the APK (it is stored uncompressed, see build.gradle), so
+ * samples are served as views on the mapping without being copied onto the Java heap, and the OS page
+ * cache decides what stays in memory.
+ * <p>
+ * Layout, all values little-endian: magic "EMSA", version, sample count, sample rate, channel count, followed
+ * by an (offset in bytes, length in 16-bit samples) pair per sample and the aligned PCM data.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class SampleArchive {
+
+    /** The name of the archive in the assets */
+    public static final String ARCHIVE_NAME = "samples.pak";
+    private static final int MAGIC = ('E') | ('M' << 8) | ('S' << 16) | ('A' << 24);
+    private static final int ARCHIVE_VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+
+    private final MappedByteBuffer map;
+    private final int sampleCount;
+    private final int sampleRate;
+    private final int channelCount;
+    private final int [] offsets;
+    private final int [] lengths;
+
+    /**
+     * Map the archive from the assets and read its index.
+     * @param assetMan The AssetManager to open the archive with
+     * @throws IOException if the archive could not be mapped or is not a valid archive
+     */
+    public SampleArchive(AssetManager assetMan) throws IOException {
+        AssetFileDescriptor assFd = assetMan.openFd(ARCHIVE_NAME);
+        FileInputStream fis = assFd.createInputStream();
+        try {
+            // The mapping stays valid after the channel is closed.
+            map = fis.getChannel().map(FileChannel.MapMode.READ_ONLY, assFd.getStartOffset(), assFd.getLength());
+        } finally {
+            fis.close();
+            assFd.close();
+        }
+        map.order(ByteOrder.LITTLE_ENDIAN);
+
+        if(map.getInt(0) != MAGIC || map.getInt(4) != ARCHIVE_VERSION)
+            throw new IOException(ARCHIVE_NAME + " is not a version " + ARCHIVE_VERSION + " sample archive");
+        sampleCount = map.getInt(8);
+        sampleRate = map.getInt(12);
+        channelCount = map.getInt(16);
+
+        offsets = new int[sampleCount];
+        lengths = new int[sampleCount];
+        for(int i = 0; i < sampleCount; i++) {
+            offsets[i] = map.getInt(HEADER_SIZE + i * 8);
+            lengths[i] = map.getInt(HEADER_SIZE + i * 8 + 4);
+            if(offsets[i] < 0 || (long) offsets[i] + lengths[i] * 2L > map.capacity())
+                throw new IOException(ARCHIVE_NAME + " index entry " + i + " is out of bounds");
+        }
+    }
+
+    /**
+     * Returns a view on the PCM data of the sample for the given note, without copying it.
+     * @param note The note, 0 refers to C2 and 40 to E5
+     * @return A read-only view on the 16-bit interleaved PCM data of the sample, positioned at its start.
+     */
+    public ShortBuffer getSample(int note) {
+        ByteBuffer view = map.duplicate();
+        view.position(offsets[note]);
+        view.limit(offsets[note] + lengths[note] * 2);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().asReadOnlyBuffer();
+    }
+
+    /**
+     * Ask the OS to load the whole archive into physical memory.
+     */
+    public void load() {
+        map.load();
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannelCount() {
+        return channelCount;
+    }
+}
@@ -0,0 +1,133 @@
+package pk.contender.earmouse;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ShortBuffer;
+
+/**
+ * Serves the piano samples that exercises are mixed from.
+ * <p>
+ * The samples are read from the memory-mapped {@link pk.contender.earmouse.SampleArchive}, every sample is
+ * a view on the mapping so serving one costs neither asset I/O nor heap memory. The OS page cache keeps
+ * recently used samples in memory, optionally all samples can be paged in when the App starts, see
+ * {@link #preloadAll(RenderFormat)}.
+ * <p>
+ * Samples for a reduced {@link pk.contender.earmouse.RenderFormat} are converted by the
+ * {@link pk.contender.earmouse.SampleConverter} once and kept on the heap. Only the conversions for the most
+ * recently requested format are kept.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class SampleBank {
+
+    /** The amount of samples available */
+    public static final int SAMPLE_COUNT = 41;
+
+    private static SampleBank instance = null;
+
+    private final Context mCtx;
+    /** The mapped sample archive, null until first used */
+    private SampleArchive archive = null;
+    /** The format of the samples in {@link #converted} */
+    private RenderFormat convertedFormat = null;
+    /** Converted samples by note, null for the ones that were not converted yet */
+    private short [][] converted = null;
+
+    private SampleBank(Context context) {
+        mCtx = context.getApplicationContext();
+    }
+
+    /**
+     * Returns the application wide SampleBank, creating it if necessary.
+     * @param context Any context, only the application context is retained.
+     * @return the application wide SampleBank.
+     */
+    public static synchronized SampleBank getInstance(Context context) {
+        if(instance == null)
+            instance = new SampleBank(context);
+        return instance;
+    }
+
+    /**
+     * Returns the PCM data of the sample for the given note in the native format.
+     * @param note The note, 0 refers to C2 and 40 to E5
+     * @return A read-only view on the 16-bit interleaved stereo PCM data of the sample, positioned at its start.
+     * @throws IOException if the sample archive could not be opened
+     */
+    public ShortBuffer getSample(int note) throws IOException {
+        return getArchive().getSample(note);
+    }
+
+    /**
+     * Returns the PCM data of the sample for the given note in the given format, converting it if necessary.
+     * @param note The note, 0 refers to C2 and 40 to E5
+     * @param format The format of the returned data
+     * @return A read-only view on the 16-bit interleaved PCM data of the sample, positioned at its start.
+     * @throws IOException if the sample archive could not be opened
+     */
+    public ShortBuffer getSample(int note, RenderFormat format) throws IOException {
+        if(!format.needsConversion())
+            return getSample(note);
+        return ShortBuffer.wrap(getConverted(note, format)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Page the whole sample archive into memory and convert all samples to the given format.
+     * Blocks until done, see {@link #preloadAllAsync(RenderFormat)} for use on the UI thread.
+     * @param format The format the samples will be requested in
+     */
+    public void preloadAll(RenderFormat format) {
+        try {
+            getArchive().load();
+            if(format.needsConversion())
+                for(int note = 0; note < SAMPLE_COUNT; note++)
+                    getConverted(note, format);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs {@link #preloadAll(RenderFormat)} in the background.
+     * <p>
+     * Uses the thread pool executor so that exercises that are prepared in the meantime are not held up.
+     * @param format The format the samples will be requested in
+     */
+    public void preloadAllAsync(final RenderFormat format) {
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                preloadAll(format);
+                Log.d("DEBUG", "SampleBank preloaded " + SampleArchive.ARCHIVE_NAME + " as " + format);
+                return null;
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Returns the given sample converted to the given format, converting it if this is the first request.
+     * Requesting a different format than before discards all earlier conversions.
+     */
+    private synchronized short [] getConverted(int note, RenderFormat format) throws IOException {
+        if(!format.equals(convertedFormat)) {
+            convertedFormat = format;
+            converted = new short[SAMPLE_COUNT][];
+        }
+        if(converted[note] == null)
+            converted[note] = SampleConverter.convert(getArchive().getSample(note), format);
+        return converted[note];
+    }
+
+    /**
+     * @return The sample archive, mapping it if this is the first call.
+     * @throws IOException if the sample archive could not be opened
+     */
+    private synchronized SampleArchive getArchive() throws IOException {
+        if(archive == null)
+            archive = new SampleArchive(mCtx.getAssets());
+        return archive;
+    }
+}
@@ -0,0 +1,111 @@
+package pk.contender.earmouse;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Converts samples from the {@link pk.contender.earmouse.SampleArchive} to a reduced {@link pk.contender.earmouse.RenderFormat}.
+ * <p>
+ * Stereo is downmixed to mono by averaging the channels. The sampling rate is halved by low-pass filtering with
+ * a Blackman-windowed sinc FIR filter, so that nothing above the new Nyquist frequency folds back into the audible
+ * range, and keeping every other frame. All arithmetic is fixed-point.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class SampleConverter {
+
+    /** The amount of taps of the low-pass filter, odd so the filter is symmetric around its center tap */
+    private static final int FILTER_TAPS = 63;
+    /** The cutoff frequency as a fraction of the input sampling rate, just below the new Nyquist frequency of 0.25 */
+    private static final double FILTER_CUTOFF = 0.21;
+    /** The filter coefficients are fixed-point with this many fractional bits */
+    private static final int FILTER_SHIFT = 14;
+    private static final int [] FILTER = createFilter();
+
+    private SampleConverter() {
+    }
+
+    /**
+     * Convert a sample to the given format.
+     * @param sample 16-bit PCM data in the {@link RenderFormat#NATIVE} format, its position is not changed
+     * @param format The format to convert to, at {@link RenderFormat#NATIVE_RATE} or {@link RenderFormat#REDUCED_RATE}
+     * @return The converted 16-bit PCM data
+     */
+    public static short [] convert(ShortBuffer sample, RenderFormat format) {
+        if(format.sampleRate != RenderFormat.NATIVE_RATE && format.sampleRate != RenderFormat.REDUCED_RATE)
+            throw new IllegalArgumentException("Unsupported sampling rate " + format.sampleRate);
+
+        short [] pcm = new short[sample.remaining()];
+        sample.duplicate().get(pcm);
+        if(format.channelCount == 1)
+            pcm = downmix(pcm);
+        if(format.sampleRate == RenderFormat.REDUCED_RATE)
+            pcm = decimate(pcm, format.channelCount);
+        return pcm;
+    }
+
+    /**
+     * Average the channels of interleaved stereo PCM data.
+     * @param stereo Interleaved stereo PCM data
+     * @return Mono PCM data with half the length
+     */
+    static short [] downmix(short [] stereo) {
+        short [] mono = new short[stereo.length / 2];
+        for(int i = 0; i < mono.length; i++)
+            mono[i] = (short) ((stereo[2 * i] + stereo[2 * i + 1]) >> 1);
+        return mono;
+    }
+
+    /**
+     * Halve the sampling rate of interleaved PCM data, low-pass filtering it first.
+     * Frames beyond either end of the data are taken to be silent.
+     * @param pcm Interleaved PCM data
+     * @param channelCount The amount of interleaved channels
+     * @return The resampled PCM data
+     */
+    static short [] decimate(short [] pcm, int channelCount) {
+        int inFrames = pcm.length / channelCount;
+        int outFrames = (inFrames + 1) / 2;
+        int center = FILTER_TAPS / 2;
+        short [] output = new short[outFrames * channelCount];
+
+        for(int frame = 0; frame < outFrames; frame++) {
+            // Only the taps that overlap the data contribute
+            int first = Math.max(0, center - 2 * frame);
+            int last = Math.min(FILTER_TAPS - 1, center - 2 * frame + inFrames - 1);
+            for(int channel = 0; channel < channelCount; channel++) {
+                int acc = 0;
+                int index = (2 * frame - center + first) * channelCount + channel;
+                for(int tap = first; tap <= last; tap++, index += channelCount)
+                    acc += FILTER[tap] * pcm[index];
+                acc = (acc + (1 << (FILTER_SHIFT - 1))) >> FILTER_SHIFT;
+                if(acc > Short.MAX_VALUE)
+                    acc = Short.MAX_VALUE;
+                else if(acc < Short.MIN_VALUE)
+                    acc = Short.MIN_VALUE;
+                output[frame * channelCount + channel] = (short) acc;
+            }
+        }
+        return output;
+    }
+
+    /**
+     * @return The fixed-point coefficients of the low-pass filter, normalized to unity gain at DC.
+     */
+    private static int [] createFilter() {
+        double [] h = new double[FILTER_TAPS];
+        double sum = 0;
+        int center = FILTER_TAPS / 2;
+        for(int i = 0; i < FILTER_TAPS; i++) {
+            int n = i - center;
+            double sinc = (n == 0) ? 2 * FILTER_CUTOFF : Math.sin(2 * Math.PI * FILTER_CUTOFF * n) / (Math.PI * n);
+            double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * i / (FILTER_TAPS - 1))
+                    + 0.08 * Math.cos(4 * Math.PI * i / (FILTER_TAPS - 1));
+            h[i] = sinc * window;
+            sum += h[i];
+        }
+        int [] filter = new int[FILTER_TAPS];
+        for(int i = 0; i < FILTER_TAPS; i++)
+            filter[i] = (int) Math.round(h[i] / sum * (1 << FILTER_SHIFT));
+        return filter;
+    }
+}
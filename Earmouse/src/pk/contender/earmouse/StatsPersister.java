@@ -0,0 +1,160 @@
+package pk.contender.earmouse;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves {@link pk.contender.earmouse.ModuleStats} in the background, so that recording an answer never waits
+ * for storage.
+ * <p>
+ * Instances with new answers are marked dirty with {@link #markDirty(ModuleStats)}. Marking the same instance
+ * again before it was saved coalesces into a single save. Dirty instances are saved on a background thread
+ * {@link #FLUSH_DELAY_MILLIS} after the first one was marked, as soon as {@link #FLUSH_THRESHOLD} answers are
+ * waiting, or when {@link #flush()} is called, e.g. when the user leaves the activity.
+ * <p>
+ * All methods are thread-safe.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class StatsPersister {
+
+    /** The time in milliseconds that dirty statistics may wait before they are saved */
+    public static final int FLUSH_DELAY_MILLIS = 5000;
+    /** The amount of unsaved answers at which dirty statistics are saved without waiting for the delay */
+    public static final int FLUSH_THRESHOLD = 8;
+
+    private static StatsPersister instance = null;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    /** The instances waiting to be saved, in the order they were first marked */
+    private final LinkedHashSet<ModuleStats> dirty = new LinkedHashSet<>();
+    /** The pending delayed flush, null if none */
+    private ScheduledFuture<?> scheduledFlush = null;
+
+    /* Metrics */
+    private int flushCount = 0;
+    private long lastFlushMillis = 0;
+    private long maxFlushMillis = 0;
+    private long totalFlushMillis = 0;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushNow();
+        }
+    };
+
+    private StatsPersister() {
+    }
+
+    /**
+     * @return the application wide StatsPersister.
+     */
+    public static synchronized StatsPersister getInstance() {
+        if(instance == null)
+            instance = new StatsPersister();
+        return instance;
+    }
+
+    /**
+     * Schedule the given statistics to be saved.
+     * @param stats Statistics that have unsaved answers
+     */
+    public synchronized void markDirty(ModuleStats stats) {
+        dirty.add(stats);
+        if(getPendingAnswers() >= FLUSH_THRESHOLD)
+            flush();
+        else if(scheduledFlush == null)
+            scheduledFlush = executor.schedule(flushTask, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Save all dirty statistics now, on the background thread. Does not wait for the save to complete.
+     */
+    public synchronized void flush() {
+        if(scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        if(!dirty.isEmpty())
+            executor.execute(flushTask);
+    }
+
+    /**
+     * Save all dirty statistics on the calling thread.
+     */
+    private void flushNow() {
+        List<ModuleStats> batch;
+        synchronized (this) {
+            scheduledFlush = null;
+            if(dirty.isEmpty())
+                return;
+            batch = new ArrayList<>(dirty);
+            dirty.clear();
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        for(ModuleStats stats : batch)
+            stats.saveModuleStats();
+        long duration = SystemClock.elapsedRealtime() - start;
+
+        synchronized (this) {
+            flushCount++;
+            lastFlushMillis = duration;
+            maxFlushMillis = Math.max(maxFlushMillis, duration);
+            totalFlushMillis += duration;
+        }
+    }
+
+    /**
+     * @return The amount of statistics waiting to be saved.
+     */
+    public synchronized int getQueueDepth() {
+        return dirty.size();
+    }
+
+    /**
+     * @return The amount of answers waiting to be saved.
+     */
+    public synchronized int getPendingAnswers() {
+        int pending = 0;
+        for(ModuleStats stats : dirty)
+            pending += stats.getUnsavedAnswers();
+        return pending;
+    }
+
+    public synchronized int getFlushCount() {
+        return flushCount;
+    }
+
+    /**
+     * @return The time in milliseconds the last flush took.
+     */
+    public synchronized long getLastFlushMillis() {
+        return lastFlushMillis;
+    }
+
+    /**
+     * @return The time in milliseconds the slowest flush took.
+     */
+    public synchronized long getMaxFlushMillis() {
+        return maxFlushMillis;
+    }
+
+    /**
+     * @return A summary of the metrics, for debugging.
+     */
+    @Override
+    public synchronized String toString() {
+        return "StatsPersister: " + dirty.size() + " dirty, " + getPendingAnswers() + " answers pending, "
+                + flushCount + " flushes, last " + lastFlushMillis + "ms, max " + maxFlushMillis + "ms, average "
+                + (flushCount == 0 ? 0 : totalFlushMillis / flushCount) + "ms";
+    }
+}
@@ -0,0 +1,107 @@
+package pk.contender.earmouse;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The totals of a Module's statistics, stored next to its {@link pk.contender.earmouse.AnswerLog} so that the
+ * list of Modules can be shown without reading every answer ever given.
+ * <p>
+ * A summary records the length of the answer log it was made from, a summary that does not match the current
+ * length of the log is out of date, see {@link pk.contender.earmouse.ModuleStats#readSummary}.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class StatsSummary {
+
+    /** "EMSS", Earmouse stats summary */
+    private static final int MAGIC = 0x454d5353;
+    private static final short VERSION = 1;
+
+    /** The summary of a Module without any answers */
+    public static final StatsSummary EMPTY = new StatsSummary(0, 0, 0, 0);
+
+    /** The amount of answers given */
+    public final int answerCount;
+    /** The amount of correct answers given */
+    public final int correctCount;
+    /** The time of the last answer in milliseconds since the epoch, 0 if none */
+    public final long lastPracticed;
+    /** The length in bytes of the answer log this summary was made from */
+    public final long logLength;
+
+    public StatsSummary(int answerCount, int correctCount, long lastPracticed, long logLength) {
+        this.answerCount = answerCount;
+        this.correctCount = correctCount;
+        this.lastPracticed = lastPracticed;
+        this.logLength = logLength;
+    }
+
+    /**
+     * @return The percentage of answers that is correct or -1 if there are no answers.
+     * @see pk.contender.earmouse.ModuleStats#calculateSuccessRate()
+     */
+    public int getSuccessRate() {
+        if(answerCount == 0)
+            return -1;
+        return (int)(((float)correctCount / (float)answerCount) * 100);
+    }
+
+    /**
+     * Read a summary from the given file.
+     * @param file The file to read from
+     * @return The summary, or null if the file does not exist or could not be read.
+     */
+    public static StatsSummary read(File file) {
+        if(!file.exists())
+            return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if(in.readInt() != MAGIC || in.readShort() != VERSION)
+                return null;
+            return new StatsSummary(in.readInt(), in.readInt(), in.readLong(), in.readLong());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if(in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write this summary to the given file, through a temporary file so the file is never left half written.
+     * @param file The file to write to
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(answerCount);
+            out.writeInt(correctCount);
+            out.writeLong(lastPracticed);
+            out.writeLong(logLength);
+        } finally {
+            out.close();
+        }
+        if(!tempFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw new IOException("Could not replace " + file.getName());
+        }
+    }
+}
@@ -0,0 +1,61 @@
+#!/usr/bin/env python3
+
+#Tool to pack the sample WAVs for the Earmouse Android app into a single archive
+#Reads sample1.wav to sample41.wav from the given directory (default: samples/)
+#and writes the raw PCM data of all samples to ../assets/samples.pak
+#
+#Archive layout (all values little-endian):
+#  magic "EMSA", version, sample count, sample rate, channel count (5 x 4 bytes)
+#  per sample: offset in bytes from the start of the archive, length in 16-bit samples (2 x 4 bytes)
+#  PCM data of every sample, each starting at a multiple of ALIGNMENT bytes
+
+__version__ = "0.1"
+__author__ = "Paul Klinkenberg"
+
+import os, struct, sys, wave
+
+MAGIC = b"EMSA"
+ARCHIVE_VERSION = 1
+SAMPLE_COUNT = 41
+ALIGNMENT = 16
+
+def align(offset):
+    return (offset + ALIGNMENT - 1) // ALIGNMENT * ALIGNMENT
+
+def read_sample(path):
+    with wave.open(path, "rb") as w:
+        if w.getsampwidth() != 2:
+            sys.exit("{}: only 16-bit samples are supported".format(path))
+        return w.getframerate(), w.getnchannels(), w.readframes(w.getnframes())
+
+def pack(source_dir, output):
+    samples = []
+    rate = channels = None
+    for i in range(1, SAMPLE_COUNT + 1):
+        path = os.path.join(source_dir, "sample{}.wav".format(i))
+        print("loading {}".format(path))
+        sample_rate, sample_channels, data = read_sample(path)
+        if rate is None:
+            rate, channels = sample_rate, sample_channels
+        elif (rate, channels) != (sample_rate, sample_channels):
+            sys.exit("{}: all samples must have the same format".format(path))
+        samples.append(data)
+
+    header = struct.pack("<4s4i", MAGIC, ARCHIVE_VERSION, SAMPLE_COUNT, rate, channels)
+    offset = align(len(header) + SAMPLE_COUNT * 8)
+    index = b""
+    for data in samples:
+        index += struct.pack("<2i", offset, len(data) // 2)
+        offset = align(offset + len(data))
+
+    with open(output, "wb") as f:
+        f.write(header)
+        f.write(index)
+        for data in samples:
+            f.write(b"\0" * (align(f.tell()) - f.tell()))
+            f.write(data)
+    print("wrote {} ({} bytes)".format(output, offset))
+
+if __name__ == "__main__":
+    source_dir = sys.argv[1] if len(sys.argv) > 1 else "samples"
+    pack(source_dir, os.path.join("..", "assets", "samples.pak"))
@@ -0,0 +1,139 @@
+package pk.contender.earmouse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the statistics a Module needs to pick an exercise over a long history of answers.
+ * <p>
+ * A ranking pass asks {@link pk.contender.earmouse.ModuleStats} for the success rate and attempt count of every
+ * exercise, like Module.getWeightedExerciseIndex does. It is compared with the full scan of the history per
+ * query that ModuleStats did before it kept counters. Loading measures reading the history from its log and
+ * counting it, which is where the counters are built.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ModuleStatsBenchmark {
+
+    private static final int MODULE_ID = 1;
+    private static final int EXERCISE_COUNT = 40;
+
+    /** The amount of answers in the history */
+    @Param({"100000"})
+    public int answerCount;
+
+    /** An answer as ModuleStats kept them before it had counters */
+    private static class Answer {
+        final int exerciseIndex;
+        final boolean result;
+
+        Answer(int exerciseIndex, boolean result) {
+            this.exerciseIndex = exerciseIndex;
+            this.result = result;
+        }
+    }
+
+    private File statsDir;
+    private ModuleStats stats;
+    private List<Answer> answerList;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        AnswerStore answers = new AnswerStore(answerCount);
+        answerList = new ArrayList<>(answerCount);
+        long timestamp = System.currentTimeMillis() - answerCount * 1000L;
+        for (int i = 0; i < answerCount; i++) {
+            int exerciseIndex = random.nextInt(EXERCISE_COUNT);
+            boolean result = random.nextInt(4) != 0;
+            answers.add(exerciseIndex, result, timestamp + i * 1000L);
+            answerList.add(new Answer(exerciseIndex, result));
+        }
+
+        statsDir = Files.createTempDirectory("stats").toFile();
+        new AnswerLog(new File(statsDir, "stats_" + MODULE_ID + ".log")).rewrite(answers);
+        stats = new ModuleStats(statsDir, MODULE_ID);
+    }
+
+    @TearDown
+    public void tearDown() {
+        File [] files = statsDir.listFiles();
+        if(files != null) {
+            for (File file : files)
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        statsDir.delete();
+    }
+
+    @Benchmark
+    public int rankingPass() {
+        int sum = stats.calculateSuccessRate();
+        for (int i = 0; i < EXERCISE_COUNT; i++)
+            sum += stats.exerciseSuccessRate(i) + stats.exerciseCount(i);
+        return sum;
+    }
+
+    /**
+     * The same queries as {@link #rankingPass()}, answered by scanning the history like ModuleStats used to.
+     */
+    @Benchmark
+    public int legacyRankingPass() {
+        int correctAnswers = 0;
+        for (Answer answer : answerList) {
+            if(answer.result)
+                correctAnswers++;
+        }
+        int sum = (int)(((float)correctAnswers / (float)answerList.size()) * 100);
+
+        for (int i = 0; i < EXERCISE_COUNT; i++) {
+            int totalCount = 0, correctCount = 0;
+            for (Answer answer : answerList) {
+                if(answer.exerciseIndex == i) {
+                    totalCount++;
+                    if(answer.result)
+                        correctCount++;
+                }
+            }
+            sum += totalCount == 0 ? 0 : (int)(((float)correctCount / (float)totalCount) * 100);
+
+            int count = 0;
+            for (Answer answer : answerList) {
+                if(answer.exerciseIndex == i)
+                    count++;
+            }
+            sum += count;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public ModuleStats load() {
+        return new ModuleStats(statsDir, MODULE_ID);
+    }
+}
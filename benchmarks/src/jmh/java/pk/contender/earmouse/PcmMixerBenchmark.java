@@ -0,0 +1,101 @@
+package pk.contender.earmouse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ShortBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares mixing a chord with {@link pk.contender.earmouse.PcmMixer} against the per-sample float loop
+ * MediaFragment used before, for chords of 1 to 6 notes.
+ * <p>
+ * The samples are 2 seconds of 44.1 kHz stereo noise, each a little shorter than the one before so the
+ * mix has to deal with samples running out, like the real samples do.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PcmMixerBenchmark {
+
+    private static final int SAMPLE_LENGTH = 2 * 44100 * 2;
+
+    /** The amount of notes in the chord */
+    @Param({"1", "2", "3", "4", "5", "6"})
+    public int noteCount;
+
+    private short [][] samples;
+    private ShortBuffer [] sources;
+    private PcmMixer mixer;
+    private short [] output;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        samples = new short[noteCount][];
+        sources = new ShortBuffer[noteCount];
+        for (int i = 0; i < noteCount; i++) {
+            samples[i] = new short[SAMPLE_LENGTH - i * 4410];
+            for (int j = 0; j < samples[i].length; j++)
+                samples[i][j] = (short) (random.nextGaussian() * 6000);
+            sources[i] = ShortBuffer.wrap(samples[i]);
+        }
+        mixer = new PcmMixer(2);
+        output = new short[PcmMixer.mixLength(sources)];
+    }
+
+    @Benchmark
+    public short [] pcmMixer() throws InterruptedException {
+        mixer.clear();
+        mixer.addUnit(sources, 0, output.length, 0, 0);
+        mixer.render(output);
+        return output;
+    }
+
+    /**
+     * The mixing loop of MediaFragment.prepareExerciseUnit before PcmMixer, allocating its output like it did.
+     */
+    @Benchmark
+    public short [] legacyLoop() {
+        int sampleCount = samples.length;
+        int outputLength = 0;
+        for (short [] sample : samples) {
+            if(sample.length > outputLength)
+                outputLength = sample.length;
+        }
+        short [] output = new short [outputLength];
+
+        int sum;
+        for (int index = 0; index < outputLength; index++) {
+            sum = 0;
+            for (short [] item : samples) {
+                if(index >= item.length)
+                    continue;
+                short tmp = item[index];
+                tmp *= (1.0f - sampleCount * 0.1f);
+                sum += tmp;
+            }
+            if(sum > Short.MAX_VALUE)
+                sum = Short.MAX_VALUE;
+            else if(sum < Short.MIN_VALUE)
+                sum = Short.MIN_VALUE;
+            output[index] = (short) sum;
+        }
+        return output;
+    }
+}
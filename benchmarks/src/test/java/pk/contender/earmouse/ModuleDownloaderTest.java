@@ -0,0 +1,198 @@
+package pk.contender.earmouse;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link pk.contender.earmouse.ModuleDownloader} against a stub module server in the same process.
+ * <p>
+ * The server answers module 3 with a 404 and every other module with a small body after a short delay, so
+ * that downloads overlap. The installer fails on module 5.
+ *
+ * @author Paul Klinkenberg <pklinken.development@gmail.com>
+ */
+public class ModuleDownloaderTest {
+
+    private static final int PARALLELISM = 3;
+    private static final int MISSING_MODULE = 3;
+    private static final int INVALID_MODULE = 5;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final AtomicInteger maxInFlight = new AtomicInteger(0);
+    private ModuleDownloader downloader;
+    /** The bodies the installer received by module id */
+    private final Map<Integer, String> installed = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // More server threads than downloads, so the server never limits how many run at once
+        serverExecutor = Executors.newFixedThreadPool(4 * PARALLELISM);
+        server.setExecutor(serverExecutor);
+        server.createContext("/modules/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int running = inFlight.incrementAndGet();
+                int max;
+                while(running > (max = maxInFlight.get()) && !maxInFlight.compareAndSet(max, running));
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                inFlight.decrementAndGet();
+
+                String path = exchange.getRequestURI().getPath();
+                String name = path.substring(path.lastIndexOf('/') + 1);
+                byte [] body = ("body of " + name).getBytes("UTF-8");
+                exchange.sendResponseHeaders(name.equals("module_" + MISSING_MODULE + ".json") ? 404 : 200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+
+        String baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/modules/";
+        downloader = new ModuleDownloader(baseUrl, "Earmouse/test", PARALLELISM, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    private final ModuleDownloader.Installer installer = new ModuleDownloader.Installer() {
+        @Override
+        public void install(int moduleId, InputStream in) throws IOException {
+            if(moduleId == INVALID_MODULE)
+                throw new IOException("Invalid module " + moduleId);
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte [] buffer = new byte[256];
+            int n;
+            while((n = in.read(buffer)) != -1)
+                body.write(buffer, 0, n);
+            installed.put(moduleId, body.toString("UTF-8"));
+        }
+    };
+
+    /**
+     * Receives the results of a batch and lets the test wait for them.
+     */
+    private static class RecordingListener implements ModuleDownloader.Listener {
+        final List<ModuleDownloader.Result> items = new ArrayList<>();
+        final List<Integer> finishedCounts = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        List<ModuleDownloader.Result> results = null;
+
+        @Override
+        public synchronized void onItemFinished(ModuleDownloader.Result result, int finished, int total) {
+            items.add(result);
+            finishedCounts.add(finished);
+        }
+
+        @Override
+        public synchronized void onAllFinished(List<ModuleDownloader.Result> results) {
+            this.results = results;
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("batch did not finish", done.await(30, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void reportsEveryItemSeparately() throws InterruptedException {
+        List<Integer> moduleIds = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            moduleIds.add(i);
+        RecordingListener listener = new RecordingListener();
+        downloader.downloadAll(moduleIds, installer, listener);
+        listener.await();
+
+        synchronized (listener) {
+            assertEquals(10, listener.items.size());
+            // The callbacks run on the download threads here, so they need not arrive in order
+            List<Integer> finishedCounts = new ArrayList<>(listener.finishedCounts);
+            Collections.sort(finishedCounts);
+            for (int i = 0; i < 10; i++)
+                assertEquals(Integer.valueOf(i + 1), finishedCounts.get(i));
+
+            assertEquals(10, listener.results.size());
+            for (int i = 0; i < 10; i++) {
+                ModuleDownloader.Result result = listener.results.get(i);
+                assertEquals(i, result.moduleId);
+                if(i == MISSING_MODULE || i == INVALID_MODULE) {
+                    assertFalse(result.isSuccess());
+                    assertNotNull(result.error);
+                } else {
+                    assertTrue("module " + i + " failed: " + result.error, result.isSuccess());
+                    assertEquals("body of module_" + i + ".json", installed.get(i));
+                }
+            }
+        }
+        assertTrue(listener.results.get(MISSING_MODULE).error.getMessage().contains("404"));
+        assertFalse(installed.containsKey(MISSING_MODULE));
+        assertFalse(installed.containsKey(INVALID_MODULE));
+    }
+
+    @Test
+    public void runsAtMostParallelismDownloadsAtOnce() throws InterruptedException {
+        List<Integer> moduleIds = new ArrayList<>();
+        for (int i = 10; i < 30; i++)
+            moduleIds.add(i);
+        RecordingListener listener = new RecordingListener();
+        downloader.downloadAll(moduleIds, installer, listener);
+        listener.await();
+
+        assertTrue("ran " + maxInFlight.get() + " at once", maxInFlight.get() <= PARALLELISM);
+        assertTrue("downloads did not overlap", maxInFlight.get() > 1);
+        assertEquals(20, installed.size());
+    }
+
+    @Test
+    public void finishesAnEmptyBatch() throws InterruptedException {
+        RecordingListener listener = new RecordingListener();
+        downloader.downloadAll(new ArrayList<Integer>(), installer, listener);
+        listener.await();
+
+        assertTrue(listener.items.isEmpty());
+        assertTrue(listener.results.isEmpty());
+    }
+}